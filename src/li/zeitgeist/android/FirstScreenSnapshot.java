@@ -0,0 +1,213 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import li.zeitgeist.android.worker.DiskCacheIndex;
+
+import android.util.Log;
+
+/**
+ * The cells the gallery showed when it was left.
+ *
+ * A few kilobytes: the ids of the visible items, their placeholders
+ * and the scroll anchor. Saved when the gallery is paused and shown
+ * on a cold start before the item cache and the service are ready,
+ * so the first screen does not depend on their size or the network.
+ */
+public class FirstScreenSnapshot {
+
+    /**
+     * Standard android logging tag.
+     */
+    private static final String TAG = ZeitgeistApp.TAG + ":FirstScreenSnapshot";
+
+    /**
+     * Maximum number of cells in the snapshot.
+     */
+    public static final int MAX_CELLS = 60;
+
+    /**
+     * Version of the file format.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Ids of the visible items, top left first.
+     */
+    private int[] ids;
+
+    /**
+     * Placeholders of the items (entries may be null).
+     */
+    private byte[][] placeholders;
+
+    /**
+     * Distance of the first cell from the top of the grid.
+     */
+    private int anchorTop;
+
+    /**
+     * Constructs the snapshot.
+     *
+     * @param ids of the visible items
+     * @param placeholders of the items (entries may be null)
+     * @param anchorTop distance of the first cell from the top
+     */
+    public FirstScreenSnapshot(int[] ids, byte[][] placeholders, int anchorTop) {
+        this.ids = ids;
+        this.placeholders = placeholders;
+        this.anchorTop = anchorTop;
+    }
+
+    /**
+     * Number of cells in the snapshot.
+     *
+     * @return count
+     */
+    public int getCount() {
+        return ids.length;
+    }
+
+    /**
+     * Return the item id of a cell.
+     *
+     * @param position
+     * @return id
+     */
+    public int getId(int position) {
+        return ids[position];
+    }
+
+    /**
+     * Return the placeholder of a cell.
+     *
+     * @param position
+     * @return placeholder or null
+     */
+    public byte[] getPlaceholder(int position) {
+        return placeholders[position];
+    }
+
+    /**
+     * Return the id of the item at the top of the grid.
+     *
+     * @return id or -1 if empty
+     */
+    public int getAnchorId() {
+        return ids.length > 0 ? ids[0] : -1;
+    }
+
+    /**
+     * Return the distance of the first cell from the top.
+     *
+     * @return pixels
+     */
+    public int getAnchorTop() {
+        return anchorTop;
+    }
+
+    /**
+     * Write the snapshot, replacing the previous one at once.
+     *
+     * @param file
+     */
+    public void save(File file) {
+        File partialFile = new File(file.getPath() + DiskCacheIndex.PARTIAL_SUFFIX);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partialFile)));
+            out.writeInt(VERSION);
+            out.writeInt(anchorTop);
+            out.writeInt(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                out.writeInt(ids[i]);
+                if (placeholders[i] == null) {
+                    out.writeShort(0);
+                }
+                else {
+                    out.writeShort(placeholders[i].length);
+                    out.write(placeholders[i]);
+                }
+            }
+            out.close();
+            out = null;
+            if (!partialFile.renameTo(file)) {
+                Log.w(TAG, "unable to replace " + file.getPath());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "unable to save first screen: " + e.getMessage());
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+
+    /**
+     * Read the snapshot of the previous session.
+     *
+     * @param file
+     * @return snapshot or null if there is none
+     */
+    public static FirstScreenSnapshot load(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            int anchorTop = in.readInt();
+            int count = Math.min(in.readInt(), MAX_CELLS);
+            int[] ids = new int[count];
+            byte[][] placeholders = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                ids[i] = in.readInt();
+                int length = in.readShort();
+                if (length > 0) {
+                    placeholders[i] = new byte[length];
+                    in.readFully(placeholders[i]);
+                }
+            }
+            Log.v(TAG, "loaded first screen with " + String.valueOf(count) + " cells");
+            return new FirstScreenSnapshot(ids, placeholders, anchorTop);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "unable to load first screen: " + e.getMessage());
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+}
@@ -20,10 +20,12 @@ package li.zeitgeist.android;
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 
 import android.app.AlertDialog;
+import android.app.DatePickerDialog;
 
 import android.content.DialogInterface;
 
@@ -46,7 +48,6 @@ import android.view.*;
 import android.view.MenuItem.OnMenuItemClickListener;
 import android.view.View.OnClickListener;
 import android.widget.*;
-import android.widget.AdapterView.OnItemClickListener;
 
 import li.zeitgeist.android.worker.ItemWorker;
 import li.zeitgeist.android.worker.ThumbnailWorker;
@@ -62,7 +63,7 @@ import li.zeitgeist.api.Item.Type;
  * scrolling through everything.
  */
 public class GalleryActivity extends Activity 
-  implements OnItemClickListener, OnMenuItemClickListener {
+  implements ThumbnailGridView.OnItemClickListener, OnMenuItemClickListener {
 
     /**
      * Standard android logging tag.
@@ -86,7 +87,7 @@ public class GalleryActivity extends Activity
     /**
      * Instance of the listview/GridView the gallery is displaying.
      */
-    private GridView gridView = null;
+    private ThumbnailGridView gridView = null;
 
     /**
      * Spacing between thumbnails.
@@ -122,14 +123,6 @@ public class GalleryActivity extends Activity
      */
     private int numColumns;
     
-    /**
-     * LayoutParams of each Thumbnail ImageView.
-     * 
-     * This can change at runtime based on user settings and
-     * the size of the screen.
-     */
-    private ViewSwitcher.LayoutParams imageViewLayoutParams;
-    
     /**
      * Worker thread downloads item metadata.
      */
@@ -154,6 +147,27 @@ public class GalleryActivity extends Activity
      * ListView adapter for the GridView.
      */
     GalleryAdapter adapter;
+
+    /**
+     * Preloads the thumbnails ahead of the scroll direction.
+     */
+    private ScrollPredictor scrollPredictor;
+    
+    /**
+     * Seek control, hidden by default.
+     */
+    private SeekBar seekBar;
+
+    /**
+     * Item id at the top of the grid before the activity was
+     * recreated, -1 if none.
+     */
+    private int restoreAnchorId = -1;
+
+    /**
+     * Distance of that item from the top of the grid.
+     */
+    private int restoreAnchorTop = 0;
     
     /**
      * OnClick listener for the GalleryBar.
@@ -195,6 +209,12 @@ public class GalleryActivity extends Activity
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         Log.v(TAG, "onCreate()");
+
+        // scroll position before a configuration change
+        if (savedInstanceState != null) {
+            restoreAnchorId = savedInstanceState.getInt("anchorId", -1);
+            restoreAnchorTop = savedInstanceState.getInt("anchorTop", 0);
+        }
         
         // Disable the title bar
         requestWindowFeature(Window.FEATURE_NO_TITLE);
@@ -202,9 +222,6 @@ public class GalleryActivity extends Activity
         // Set main layout
         setContentView(R.layout.gallery);
         
-        // show initial item loading modal dialog
-        showProgressDialog();
-
         // bind and/or create/start the local service with workers
         doBindService();
         
@@ -213,10 +230,35 @@ public class GalleryActivity extends Activity
         screenWidth = display.getWidth() - 4;
         
         // set the gridview dimensions
-        gridView = (GridView) findViewById(R.id.thumbnailGrid);
+        gridView = (ThumbnailGridView) findViewById(R.id.thumbnailGrid);
         gridView.setHorizontalSpacing(THUMB_SPACING);
         gridView.setVerticalSpacing(THUMB_SPACING);
         gridView.setOnItemClickListener(this);
+        gridView.setOnScrollListener(new ThumbnailGridView.OnScrollListener() {
+            public void onScrollStateChanged(ThumbnailGridView grid, int scrollState) {
+                // don't load the thumbnails of cells flying past
+                boolean flinging = scrollState == ThumbnailGridView.SCROLL_STATE_FLING;
+                if (adapter != null) {
+                    adapter.setFlinging(flinging);
+                }
+                if (scrollPredictor != null) {
+                    if (scrollState == ThumbnailGridView.SCROLL_STATE_IDLE) {
+                        scrollPredictor.setIdle();
+                    }
+                    scrollPredictor.setFlinging(flinging);
+                }
+                if (scrollState == ThumbnailGridView.SCROLL_STATE_IDLE) {
+                    saveScrollAnchor();
+                }
+            }
+
+            public void onScroll(ThumbnailGridView grid, int firstVisibleItem, 
+                    int visibleItemCount, int totalItemCount) {
+                if (scrollPredictor != null) {
+                    scrollPredictor.onScroll(firstVisibleItem, visibleItemCount, totalItemCount);
+                }
+            }
+        });
         
         // calculates and sets the thumbnail item size (thumbWidth)
         updateThumbnailSize();
@@ -236,6 +278,9 @@ public class GalleryActivity extends Activity
         
         galleryBarProgressIcon = 
                 (ProgressBar) findViewById(R.id.galleryBarProgressIcon);
+
+        seekBar = (SeekBar) findViewById(R.id.gallerySeekBar);
+        seekBar.setOnSeekBarChangeListener(new GallerySeekBarListener());
         
         // show the camera icon if the device has one
         ImageView galleryBarCameraIcon = (ImageView) findViewById(R.id.galleryBarCameraIcon);
@@ -244,7 +289,71 @@ public class GalleryActivity extends Activity
             galleryBarCameraIcon.setOnClickListener(galleryBarOnClickListener);
         }
         
-        
+        // show the first screen of the last session right away, the
+        // items are loaded meanwhile
+        if (!showFirstScreen()) {
+            // show initial item loading modal dialog
+            showProgressDialog();
+        }
+    }
+
+    /**
+     * Show the snapshot of the first screen saved by the previous
+     * session, until the service is bound.
+     * 
+     * @return false if there is no snapshot
+     */
+    private boolean showFirstScreen() {
+        FirstScreenSnapshot snapshot = FirstScreenSnapshot.load(getFirstScreenFile());
+        if (snapshot == null || snapshot.getCount() == 0) {
+            return false;
+        }
+        gridView.setAdapter(new SnapshotAdapter(this, snapshot));
+        if (restoreAnchorId == -1) {
+            restoreAnchorId = snapshot.getAnchorId();
+            restoreAnchorTop = snapshot.getAnchorTop();
+        }
+        showGalleryBarProgressIcon();
+        return true;
+    }
+
+    /**
+     * Save the visible cells for the first screen of the next
+     * session.
+     */
+    private void saveFirstScreen() {
+        int count = Math.min(gridView.getChildCount(), FirstScreenSnapshot.MAX_CELLS);
+        if (itemWorker == null || count == 0) {
+            return;
+        }
+        int[] ids = new int[count];
+        byte[][] placeholders = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            ids[i] = ((ThumbnailCellView) gridView.getChildAt(i)).getItemId();
+            placeholders[i] = itemWorker.getPlaceholder(ids[i]);
+        }
+        new FirstScreenSnapshot(ids, placeholders, gridView.getAnchorTop())
+            .save(getFirstScreenFile());
+    }
+
+    /**
+     * Report the scroll position in the current filter, the worker
+     * saves it when the filter changes.
+     */
+    private void saveScrollAnchor() {
+        long anchorId = gridView.getAnchorId();
+        if (itemWorker != null && adapter != null && anchorId != AdapterView.INVALID_ROW_ID) {
+            itemWorker.setScrollAnchor((int) anchorId, gridView.getAnchorTop());
+        }
+    }
+
+    /**
+     * Return the file of the first screen snapshot.
+     * 
+     * @return file in the internal storage
+     */
+    private File getFirstScreenFile() {
+        return new File(getFilesDir(), "first_screen.bin");
     }
     
     @Override
@@ -264,8 +373,22 @@ public class GalleryActivity extends Activity
 
         // stores the memory cache of item objects to sdcard
         if (itemWorker != null) {
+            saveScrollAnchor();
             itemWorker.saveItemDiskCache();
         }
+        saveFirstScreen();
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+
+        // positions change with new items, remember the item instead
+        long anchorId = gridView.getAnchorId();
+        if (anchorId != AdapterView.INVALID_ROW_ID) {
+            outState.putInt("anchorId", (int) anchorId);
+            outState.putInt("anchorTop", gridView.getAnchorTop());
+        }
     }
 
     @Override
@@ -316,6 +439,7 @@ public class GalleryActivity extends Activity
             // get worker instances:
             itemWorker = boundService.getItemWorker();
             thumbnailWorker = boundService.getThumbnailWorker();
+            thumbnailWorker.setThumbnailSize(getThumbnailInnerSize());
 
             // check for new items
             itemWorker.queryFirstItems();
@@ -323,6 +447,23 @@ public class GalleryActivity extends Activity
             // create a new listview adapter
             adapter = new GalleryAdapter(GalleryActivity.this, itemWorker, thumbnailWorker);
             gridView.setAdapter(adapter);
+            if (restoreAnchorId == -1) {
+                // where the gallery was left in this filter
+                int[] anchor = itemWorker.getScrollAnchor();
+                if (anchor != null) {
+                    restoreAnchorId = anchor[0];
+                    restoreAnchorTop = anchor[1];
+                }
+            }
+            if (restoreAnchorId != -1) {
+                int position = itemWorker.getPositionById(restoreAnchorId);
+                if (position >= 0) {
+                    gridView.setSelectionFromTop(position, restoreAnchorTop);
+                }
+                restoreAnchorId = -1;
+            }
+            scrollPredictor = new ScrollPredictor(itemWorker, thumbnailWorker);
+            scrollPredictor.setNumColumns(numColumns);
             
             // change the icon selection based on current filter settings
             galleryBarOnClickListener.updateShowIcons();
@@ -361,7 +502,15 @@ public class GalleryActivity extends Activity
                    " thumbWidth=" + String.valueOf(thumbWidth) + 
                    " targetWidth=" + String.valueOf(targetWidth));
 
-        imageViewLayoutParams = new ViewSwitcher.LayoutParams(thumbWidth, thumbWidth);
+        // the raw pixel cache of the worker stores thumbnails in this size
+        if (scrollPredictor != null) {
+            scrollPredictor.setNumColumns(numColumns);
+        }
+        if (thumbnailWorker != null) {
+            thumbnailWorker.setThumbnailSize(getThumbnailInnerSize());
+            thumbnailWorker.setDecodeMode(prefs.getString("thumbnailDecodeMode", 
+                    ThumbnailWorker.DECODE_MODE_AUTO));
+        }
 
         // set the gridview properties, this will also refresh for different
         // thumbnail sizes:
@@ -369,6 +518,16 @@ public class GalleryActivity extends Activity
         gridView.setNumColumns(numColumns);
         gridView.invalidateViews();
     }
+
+    /**
+     * Return the size the thumbnails are drawn in, the cell width
+     * without the padding of the cells.
+     * 
+     * @return width and height in pixels
+     */
+    private int getThumbnailInnerSize() {
+        return thumbWidth - 2 * THUMB_PADDING;
+    }
     
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
@@ -379,6 +538,7 @@ public class GalleryActivity extends Activity
         menu.findItem(R.id.galleryMenuSettingsItem).setOnMenuItemClickListener(this);
         menu.findItem(R.id.galleryMenuRefreshItem).setOnMenuItemClickListener(this);
         menu.findItem(R.id.galleryMenuResetFilters).setOnMenuItemClickListener(this);
+        menu.findItem(R.id.galleryMenuSeekItem).setOnMenuItemClickListener(this);
         
         return true;
     }
@@ -438,11 +598,17 @@ public class GalleryActivity extends Activity
     }
 
     @Override
-    public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+    public void onItemClick(ThumbnailGridView grid, View view, int position, long id) {
+        if (adapter == null) return; // still the snapshot
         Item item = itemWorker.getItemByPosition(position);
         
         if (item == null) return; // huh?
 
+        // start loading the preview for the detail view right away
+        if (thumbnailWorker != null) {
+            thumbnailWorker.loadPreview(item, null);
+        }
+
         // switch to detailed item activity
         Intent showItemActivityIntent = new Intent(this, ItemActivity.class);
         Bundle itemIdBundle = new Bundle();
@@ -460,15 +626,24 @@ public class GalleryActivity extends Activity
             startActivity(settingsActivity);
             break;
         
+        // show or hide the seek control, or pick a date
+        case R.id.galleryMenuSeekItem:
+            showSeekDialog();
+            break;
+        
         // click on refresh queries the loading in the itemWorker
         case R.id.galleryMenuRefreshItem:
-            showGalleryBarProgressIcon();
-            itemWorker.queryNewerItems();
+            if (itemWorker != null) {
+                showGalleryBarProgressIcon();
+                itemWorker.queryNewerItems();
+            }
             break;
 
         // clear filtering for tags etc.
         case R.id.galleryMenuResetFilters:
-            itemWorker.setShowTag(null);
+            if (itemWorker != null) {
+                itemWorker.setShowTag(null);
+            }
             break;
         }
         return true;
@@ -499,11 +674,11 @@ public class GalleryActivity extends Activity
     }
 
     /**
-     * Returns the GridView instance.
+     * Returns the thumbnail grid instance.
      * 
-     * @return GridView
+     * @return ThumbnailGridView
      */
-    public GridView getGridView() {
+    public ThumbnailGridView getGridView() {
         return gridView;
     }
 
@@ -584,6 +759,138 @@ public class GalleryActivity extends Activity
         }
     }
     
+    /**
+     * Ask whether to seek to a position or a date, or hide the
+     * seek control if shown.
+     * 
+     * Does nothing until the service is bound (the first screen
+     * snapshot may be shown).
+     */
+    private void showSeekDialog() {
+        if (itemWorker == null) {
+            return;
+        }
+        if (seekBar.getVisibility() == View.VISIBLE) {
+            seekBar.setVisibility(View.GONE);
+            return;
+        }
+        new AlertDialog.Builder(this)
+        .setTitle("Jump to...")
+        .setItems(new CharSequence[] {"Position", "Date"}, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                if (which == 0) {
+                    toggleSeekBar();
+                }
+                else {
+                    showSeekDateDialog();
+                }
+            }
+        })
+        .show();
+    }
+
+    /**
+     * Pick a date and seek to the items created on it.
+     * 
+     * Starts with the date of the item at the top of the grid.
+     */
+    private void showSeekDateDialog() {
+        Calendar calendar = Calendar.getInstance();
+        long anchorId = gridView.getAnchorId();
+        if (anchorId != AdapterView.INVALID_ROW_ID) {
+            Item item = itemWorker.getItemById((int) anchorId);
+            if (item != null && item.getCreatedAt() != null) {
+                calendar.setTime(item.getCreatedAt());
+            }
+        }
+        new DatePickerDialog(this, new DatePickerDialog.OnDateSetListener() {
+            public void onDateSet(DatePicker view, int year, int monthOfYear, int dayOfMonth) {
+                if (itemWorker == null) {
+                    return;
+                }
+                // the newest item of that day is at the top
+                Calendar date = Calendar.getInstance();
+                date.clear();
+                date.set(year, monthOfYear, dayOfMonth);
+                date.add(Calendar.DAY_OF_MONTH, 1);
+                date.add(Calendar.MILLISECOND, -1);
+                showGalleryBarProgressIcon();
+                itemWorker.seekToDate(date.getTime(), new GallerySeekListener());
+            }
+        }, calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH), 
+        calendar.get(Calendar.DAY_OF_MONTH)).show();
+    }
+
+    /**
+     * Show the seek control at the current position, or hide it.
+     */
+    private void toggleSeekBar() {
+        if (seekBar.getVisibility() == View.VISIBLE) {
+            seekBar.setVisibility(View.GONE);
+            return;
+        }
+        int newestId = itemWorker.getNewestId();
+        long anchorId = gridView.getAnchorId();
+        if (newestId > 1 && anchorId != AdapterView.INVALID_ROW_ID) {
+            seekBar.setProgress((int) ((newestId - anchorId) * seekBar.getMax() / (newestId - 1)));
+        }
+        seekBar.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Seeks to the id of the seek control position when released.
+     * 
+     * Ids increase with time, the control maps its range linearly
+     * to the ids from the newest to the first item.
+     */
+    private class GallerySeekBarListener implements SeekBar.OnSeekBarChangeListener {
+
+        public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {}
+
+        public void onStartTrackingTouch(SeekBar seekBar) {}
+
+        public void onStopTrackingTouch(SeekBar seekBar) {
+            if (itemWorker == null) {
+                return;
+            }
+            int newestId = itemWorker.getNewestId();
+            if (newestId < 1) {
+                return;
+            }
+            int id = newestId - (int) ((long) seekBar.getProgress() * (newestId - 1) / seekBar.getMax());
+            showGalleryBarProgressIcon();
+            itemWorker.seekToId(id, new GallerySeekListener());
+        }
+    }
+
+    /**
+     * Scrolls the grid to the position found by a seek.
+     * 
+     * Called within the itemWorker thread.
+     */
+    private class GallerySeekListener implements ItemWorker.SeekListener {
+
+        public void onSeek(final int position) {
+            gridView.post(new Runnable() {
+                public void run() {
+                    hideGalleryBarProgressIcon();
+                    if (position >= 0) {
+                        gridView.setSelection(position);
+                    }
+                }
+            });
+        }
+
+        public void onError(final String error) {
+            gridView.post(new Runnable() {
+                public void run() {
+                    hideGalleryBarProgressIcon();
+                    showErrorAlert(error);
+                }
+            });
+        }
+    }
+    
     /**
      * Create a new view to be used as a item within the GridView.
      * 
@@ -591,40 +898,13 @@ public class GalleryActivity extends Activity
      * the same views are later recycled by the gridview to display
      * other images.
      * 
-     * The View is a ViewSwitcher that either shows a progress/loading
-     * bar or the image thumbnail.
+     * The View draws the placeholder or the image thumbnail, its
+     * size follows the column width of the grid.
      * 
      * @return new view instance
      */
-    public ViewSwitcher createItemViewSwitcher() {
-        // create view switcher
-        ViewSwitcher viewSwitcher = new ViewSwitcher(this);
-        viewSwitcher.setBackgroundColor(R.color.gallery_item_view_background);
-        viewSwitcher.setPadding(GalleryActivity.THUMB_PADDING, 
-                GalleryActivity.THUMB_PADDING, 
-                GalleryActivity.THUMB_PADDING, 
-                GalleryActivity.THUMB_PADDING);
-
-        // create progressbar
-        ViewSwitcher.LayoutParams progressBarLayoutParams =
-                 new ViewSwitcher.LayoutParams(
-                         (int) Math.floor(thumbWidth / 2.5), 
-                         (int) Math.floor(thumbWidth / 2.5));
-        progressBarLayoutParams.gravity = Gravity.CENTER;
-        ProgressBar progressBar = new ProgressBar(this);
-        progressBar.setLayoutParams(progressBarLayoutParams);
-        
-        // create image view
-        ImageView imageView = new ImageView(this);
-        imageView.setLayoutParams(imageViewLayoutParams);
-        imageView.setScaleType(ImageView.ScaleType.CENTER_CROP);
-        
-        // add to view switcher
-        viewSwitcher.addView(progressBar);
-        viewSwitcher.addView(imageView);
-        viewSwitcher.setDisplayedChild(0);
-        
-        return viewSwitcher;
+    public ThumbnailCellView createItemView() {
+        return new ThumbnailCellView(this);
     }
     
 }
@@ -20,20 +20,17 @@ package li.zeitgeist.android;
 import java.util.List;
 
 import li.zeitgeist.android.worker.*;
+import li.zeitgeist.android.worker.ItemWorker.ChangedItemsListener;
 import li.zeitgeist.android.worker.ItemWorker.UpdatedItemsListener;
+import li.zeitgeist.android.worker.ThumbnailWorker.ThumbnailRequest;
 
 import li.zeitgeist.api.Item;
 import android.graphics.Bitmap;
-import android.graphics.Color;
 import android.util.Log;
-import android.view.Gravity;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AdapterView;
 import android.widget.BaseAdapter;
-import android.widget.ImageView;
-import android.widget.ProgressBar;
-import android.widget.TextView;
-import android.widget.ViewSwitcher;
 
 /**
  * ListView Adapter for the Thumbnail Gallery.
@@ -43,7 +40,8 @@ import android.widget.ViewSwitcher;
  * download the thumbnail bitmaps (and cache them) in the
  * thumbnailWorker.
  */
-public class GalleryAdapter extends BaseAdapter implements UpdatedItemsListener {
+public class GalleryAdapter extends BaseAdapter 
+        implements UpdatedItemsListener, ChangedItemsListener, ThumbnailGridView.DeferredBinder {
 
 
     
@@ -67,6 +65,11 @@ public class GalleryAdapter extends BaseAdapter implements UpdatedItemsListener
      */
     private ThumbnailWorker thumbnailWorker;
     
+    /**
+     * Applies loaded thumbnails to the cells once per frame.
+     */
+    private ThumbnailBatcher thumbnailBatcher;
+
     /**
      * Constructs the adapter.
      * 
@@ -81,8 +84,10 @@ public class GalleryAdapter extends BaseAdapter implements UpdatedItemsListener
         this.galleryActivity = galleryActivity;
         this.itemWorker = itemWorker;
         this.thumbnailWorker = thumbnailWorker;
+        thumbnailBatcher = new ThumbnailBatcher(thumbnailWorker);
 
         itemWorker.addUpdatedItemsListener(this);
+        itemWorker.addChangedItemsListener(this);
     }
 
     @Override
@@ -97,7 +102,17 @@ public class GalleryAdapter extends BaseAdapter implements UpdatedItemsListener
 
     @Override
     public long getItemId(int position) {
-        return getItem(position).getId();
+        Item item = getItem(position);
+        return item != null ? item.getId() : AdapterView.INVALID_ROW_ID;
+    }
+
+    /**
+     * Item ids are stable, a cell keeps showing the same item after
+     * the positions changed.
+     */
+    @Override
+    public boolean hasStableIds() {
+        return true;
     }
     
     @Override
@@ -106,11 +121,76 @@ public class GalleryAdapter extends BaseAdapter implements UpdatedItemsListener
             public void run() {
                 galleryActivity.hideProgressDialog();
                 galleryActivity.hideGalleryBarProgressIcon();
-                notifyDataSetChanged();
             }
         });
     }
 
+    @Override
+    public void onChangedItems(final ItemChangeSet changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        galleryActivity.getGridView().post(new Runnable() {
+            public void run() {
+                applyChanges(changes);
+            }
+        });
+    }
+
+    /**
+     * Apply the changed positions to the grid.
+     * 
+     * Only the item count and the positions of the cells can change,
+     * the cells themselves show nothing but the thumbnail. Cells
+     * still bound to the same item keep their bitmap (see getView),
+     * and the item at the top of the grid stays in place when items
+     * are inserted or removed above it.
+     * 
+     * @param changes
+     */
+    private void applyChanges(ItemChangeSet changes) {
+        ThumbnailGridView grid = galleryActivity.getGridView();
+        Log.v(TAG, "apply changes: " + changes);
+
+        if (!changes.isReset() && changes.getInsertedAtTop() == 0 &&
+                changes.getAppendedAtBottom() == 0 && changes.getRemovedIds().isEmpty()) {
+            // only updated items, their thumbnails are the same
+            return;
+        }
+
+        // remember the item of the first visible cell
+        long anchorId = grid.getAnchorId();
+        int anchorTop = grid.getAnchorTop();
+        int first = grid.getFirstVisiblePosition();
+
+        // or return to the item the grid showed last in this filter
+        if (changes.isFilterChanged() || anchorId == AdapterView.INVALID_ROW_ID) {
+            int[] anchor = itemWorker.getScrollAnchor();
+            if (anchor != null) {
+                anchorId = anchor[0];
+                anchorTop = anchor[1];
+            }
+        }
+
+        notifyDataSetChanged();
+        if (getCount() > 0) {
+            galleryActivity.hideProgressDialog(); // cached items are shown
+        }
+
+        // appending at the bottom never moves the first visible cell
+        boolean shifted = changes.isReset() || changes.getInsertedAtTop() > 0 ||
+                !changes.getRemovedIds().isEmpty();
+        if (anchorId != AdapterView.INVALID_ROW_ID && shifted) {
+            int position = itemWorker.getPositionById((int) anchorId);
+            if (position >= 0 && (position != first || changes.isFilterChanged())) {
+                grid.setSelectionFromTop(position, anchorTop);
+            }
+            else if (position < 0 && changes.isFilterChanged()) {
+                grid.setSelection(0);
+            }
+        }
+    }
+
     @Override
     public void onError(final String error) {
         galleryActivity.getGridView().post(new Runnable() {
@@ -123,97 +203,115 @@ public class GalleryAdapter extends BaseAdapter implements UpdatedItemsListener
         });
     }
 
+    /**
+     * Synchronous part of the bind: the placeholder or a thumbnail
+     * in the memory cache.
+     */
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
-        final ViewSwitcher viewSwitcher;
+        final ThumbnailCellView cell;
         
         // create a new view or recycle an old one
         if (convertView == null) {
-            viewSwitcher = galleryActivity.createItemViewSwitcher();
+            cell = galleryActivity.createItemView();
         }
         else {
-            viewSwitcher = (ViewSwitcher) convertView; // use recycled view
+            cell = (ThumbnailCellView) convertView; // use recycled view
         }
         
-        
-        final ProgressBar progress = (ProgressBar) viewSwitcher.getChildAt(0);
-        final ImageView thumbnail = (ImageView) viewSwitcher.getChildAt(1);
-        
         // the rendering of the last item is triggering the loading
         // of older items at the bottom.
         if (itemWorker.getItemCount() == position+1 && !itemWorker.isLockedQuery()) {
             itemWorker.queryOlderItems();
         }
         
+        // the first cell of a range loaded by a seek extends it upwards
+        if (position == 0 && itemWorker.isSeekRange() && !itemWorker.isLoading()) {
+            itemWorker.queryNewerRange();
+        }
+        
         final Item item = getItem(position);
-        if (item != null) {
-            Log.d(TAG, String.format("getView(%d) -> %d", position, item.getId()));
-            
-            Integer tag = (Integer) viewSwitcher.getTag();
-            if (tag != null && tag == item.getId()) {
-                // nothing
-            }
-            else {
-                viewSwitcher.setDisplayedChild(0);
-                viewSwitcher.setTag(item.getId());
-            }
-            
-            if (thumbnailWorker.isMemCached(item)) {
-                Log.v(TAG, "updateItemView in ui thread, memcached: " + String.valueOf(item.getId()));
-                Bitmap bitmap = thumbnailWorker.getBitmapByItem(item);
-                if ((Integer) viewSwitcher.getTag() != item.getId()) {
-                    Log.w(TAG, "warning tag mismatch: " + String.valueOf(item.getId()) + " (tagged) item: " + String.valueOf((Integer)viewSwitcher.getTag()));
-                }
-                else {
-                    thumbnail.setImageBitmap(bitmap);
-                    viewSwitcher.setDisplayedChild(1);
-                }
-                
-            }
-            else {
-                // load bitmap from disk or web and update the view
-                // within the UI thread, other loadThumbnail()'s override the callback
-                Log.v(TAG, "loadThumbnail() for id: " + String.valueOf(item.getId()));
-                thumbnailWorker.loadThumbnail(item, 
-                        new ThumbnailWorker.LoadedThumbnailListener() {
-                    @Override
-                    public void onLoadedThumbnail(final int id, final Bitmap bitmap) {
-
-                        Log.v(TAG, "[DEBUG] onLoadedThumbnail callback returned for id: " + String.valueOf(id));
-                        galleryActivity.runOnUiThread(new Runnable() {
-                            public void run() {
-                                Log.v(TAG, "[DEBUG] viewSwitcher.post(Runnable()) for " + String.valueOf(id));
-                                if ((Integer) viewSwitcher.getTag() != id) {
-                                    Log.w(TAG, "warning tag mismatch: " + String.valueOf(id) + " (tagged) item: " + String.valueOf((Integer)viewSwitcher.getTag()));
-                                    return;
-                                }
+        if (item == null) {
+            Log.w(TAG, "getView() without item at position " + String.valueOf(position));
+            return cell;
+        }
 
-                                thumbnail.setImageBitmap(bitmap);
-                                viewSwitcher.setDisplayedChild(1);
-                            }
-                        });
-                    }
-                });
-            }
+        if (cell.bind(item.getId())) {
+            // the view is recycled for another item (the cell cancelled
+            // the load of the previous one), show the placeholder until
+            // the thumbnail is loaded
+            cell.setPlaceholder(thumbnailWorker.getPlaceholderDrawable(item));
         }
-        else {
-            Log.w(TAG, String.format("getView(%d) -> null", position));
+        else if (cell.hasThumbnail()) {
+            return cell; // rebound to the same item, nothing changed
         }
-
-        /*
-        // hide previous image, show progress circle
-        galleryActivity.showItemViewProgressBar(view);
         
+        Bitmap bitmap = thumbnailWorker.loadFromMemCache(item);
+        if (bitmap != null) {
+            cell.setThumbnail(thumbnailWorker.getThumbnailDrawable(item, bitmap));
+        }
+        
+        return cell;
+    }
 
+    /**
+     * Deferred part of the bind: load the thumbnail from the disk
+     * cache or the web.
+     */
+    @Override
+    public void bindDeferred(int position, View view) {
+        ThumbnailCellView cell = (ThumbnailCellView) view;
+        Item item = getItem(position);
+        if (item == null || cell.getItemId() != item.getId() || cell.hasThumbnail()) {
+            return;
+        }
+        ThumbnailRequest pending = cell.getRequest();
+        if (pending != null && pending.getId() == item.getId() && !pending.isDone()) {
+            return; // still loading for this view
+        }
+        loadThumbnail(cell, item);
+    }
 
-        
-        
-        
-        // tag this view with the item id
+    /**
+     * Load the thumbnail of the item for the view.
+     * 
+     * @param cell bound to the item
+     * @param item
+     */
+    private void loadThumbnail(final ThumbnailCellView cell, final Item item) {
+        // load bitmap from disk or web and update the view
+        // within the UI thread, other loadThumbnail()'s override the callback
+        Log.v(TAG, "loadThumbnail() for id: " + String.valueOf(item.getId()));
+        ThumbnailRequest request = thumbnailWorker.loadThumbnail(item, 
+                new ThumbnailWorker.LoadedThumbnailListener() {
+            @Override
+            public void onLoadedThumbnail(final int id, final Bitmap bitmap) {
+                thumbnailBatcher.deliver(cell, item, bitmap);
+            }
+        });
+        cell.setRequest(request);
+    }
 
-        */
-        
-        return viewSwitcher;
+    /**
+     * Inform the adapter about the scroll state of the grid.
+     * 
+     * While flinging the cells flying past only show memory cache
+     * hits (or placeholders), the pending loads are cancelled. The
+     * grid binds the cells that are visible once it settles.
+     * 
+     * @param flinging true if the grid is flinging
+     */
+    public void setFlinging(boolean flinging) {
+        if (flinging) {
+            // cells in the recycle pool cancel theirs when rebound
+            ThumbnailGridView grid = galleryActivity.getGridView();
+            for (int i = 0; i < grid.getChildCount(); i++) {
+                View child = grid.getChildAt(i);
+                if (child instanceof ThumbnailCellView) {
+                    ((ThumbnailCellView) child).cancelRequest();
+                }
+            }
+        }
     }
 
 
@@ -236,25 +236,64 @@ public class ItemActivity extends Activity implements OnMenuItemClickListener, O
         // hide the detail icon in the item bar
         itemBarDetailIcon.setVisibility(View.GONE);
         
-        // load thumbnail bitmap and assign to the thumbnail imageview
-        if (thumbnailWorker.isMemCached(item)) {
-            detailThumbnail.setImageBitmap(thumbnailWorker.getBitmapByItem(item));
+        // show the preview if in memory, otherwise the thumbnail
+        // until the preview is loaded
+        final Item shownItem = item;
+        Bitmap preview = thumbnailWorker.loadFromPreviewCache(item);
+        if (preview != null) {
+            detailThumbnail.setImageBitmap(preview);
         }
         else {
-            // load bitmap from disk or web and update the view
-            thumbnailWorker.loadThumbnail(item, 
+            // load thumbnail bitmap and assign to the thumbnail imageview
+            Bitmap thumbnail = thumbnailWorker.loadFromMemCache(item);
+            if (thumbnail != null) {
+                detailThumbnail.setImageDrawable(
+                        thumbnailWorker.getThumbnailDrawable(item, thumbnail));
+            }
+            else {
+                // load bitmap from disk or web and update the view
+                thumbnailWorker.loadThumbnail(item, 
+                        new ThumbnailWorker.LoadedThumbnailListener() {
+                    @Override
+                    public void onLoadedThumbnail(final int id, final Bitmap bitmap) {
+
+                        detailThumbnail.post(new Runnable() {
+                            public void run() {
+                                if (thumbnailWorker.isPreviewCached(shownItem)) {
+                                    return; // the sharp preview was faster
+                                }
+                                detailThumbnail.setImageDrawable(
+                                        thumbnailWorker.getThumbnailDrawable(shownItem, bitmap));
+                            }
+                        });
+                    }
+                });
+            }
+
+            // load the preview from disk or web and replace the thumbnail
+            thumbnailWorker.loadPreview(item, 
                     new ThumbnailWorker.LoadedThumbnailListener() {
                 @Override
                 public void onLoadedThumbnail(final int id, final Bitmap bitmap) {
-
+                    if (bitmap == null) {
+                        return;
+                    }
                     detailThumbnail.post(new Runnable() {
                         public void run() {
-                            detailThumbnail.setImageBitmap(bitmap);
+                            if (item != null && item.getId() == id) {
+                                detailThumbnail.setImageBitmap(bitmap);
+                            }
                         }
                     });
                 }
             });
         }
+
+        // the user is likely to go on with the next (older) item
+        Item nextItem = itemWorker.getItemById(itemWorker.getNextItemId(item.getId()));
+        if (nextItem != null && nextItem != item) {
+            thumbnailWorker.prefetchPreview(nextItem);
+        }
         
         if (item.getTitle() != null) {
             detailTitle.setText(item.getTitle());
@@ -69,7 +69,7 @@ public class LocalService extends Service {
 
         // Instantiate them once:
         itemWorker = new ItemWorker(this);
-        thumbnailWorker = new ThumbnailWorker(this);
+        thumbnailWorker = new ThumbnailWorker(this, itemWorker);
     }
     
     @Override
@@ -87,6 +87,26 @@ public class LocalService extends Service {
         thumbnailWorker.stopThreadPool();
     }
     
+    /**
+     * Pass the memory pressure on to the workers.
+     * 
+     * Called by the platform since API level 14, older platforms
+     * only call onLowMemory().
+     * 
+     * @param level one of the MemoryTrimmer.TRIM_MEMORY_* levels
+     */
+    public void onTrimMemory(int level) {
+        Log.d(TAG, "onTrimMemory(" + String.valueOf(level) + ")");
+        itemWorker.trimMemory(level);
+        thumbnailWorker.trimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        Log.d(TAG, "onLowMemory()");
+        onTrimMemory(MemoryTrimmer.TRIM_MEMORY_COMPLETE);
+    }
+    
     /**
      * Return the worker instance.
      * @return instance
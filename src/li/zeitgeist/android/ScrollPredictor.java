@@ -0,0 +1,288 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import li.zeitgeist.android.worker.ItemWorker;
+import li.zeitgeist.android.worker.PriorityExecutor;
+import li.zeitgeist.android.worker.ThumbnailWorker;
+import li.zeitgeist.android.worker.ThumbnailWorker.ThumbnailRequest;
+
+import li.zeitgeist.api.Item;
+import android.os.SystemClock;
+
+/**
+ * Preloads the thumbnails of the rows about to scroll into view.
+ *
+ * Fed with the scroll position of the grid, it estimates the scroll
+ * velocity (rows per second) and asks the thumbnail worker to load
+ * the rows ahead in the direction of travel, in the background. The
+ * faster the scrolling the more rows, but never more than fit into
+ * the memory cache next to the visible ones.
+ *
+ * Nothing is preloaded while the grid flings, the preloads still
+ * pending are cancelled when a fling starts. The rows ahead are
+ * preloaded once the grid settles.
+ */
+public class ScrollPredictor {
+
+    /**
+     * Time the lookahead should cover (s).
+     */
+    private static final float LOOKAHEAD_TIME = 0.75f;
+
+    /**
+     * Rows preloaded even when scrolling slowly.
+     */
+    private static final int MIN_LOOKAHEAD_ROWS = 1;
+
+    /**
+     * Samples further apart than this (ms) restart the estimation.
+     */
+    private static final long MAX_SAMPLE_INTERVAL = 250;
+
+    /**
+     * Weight of a new sample in the smoothed velocity.
+     */
+    private static final float SMOOTHING = 0.5f;
+
+    /**
+     * Time (ms) without samples after which the velocity estimation
+     * has halved.
+     */
+    private static final long VELOCITY_HALF_LIFE = 250;
+
+    /**
+     * Datasource of the items by position.
+     */
+    private ItemWorker itemWorker;
+
+    /**
+     * Loads the thumbnails.
+     */
+    private ThumbnailWorker thumbnailWorker;
+
+    /**
+     * Number of columns of the grid.
+     */
+    private int numColumns = 1;
+
+    /**
+     * First visible position of the last sample.
+     */
+    private int lastFirst = -1;
+
+    /**
+     * Uptime of the last sample.
+     */
+    private long lastTime = 0;
+
+    /**
+     * Smoothed velocity in rows per second, negative upwards.
+     */
+    private float velocity = 0;
+
+    /**
+     * Direction of the last movement, 1 downwards, -1 upwards.
+     */
+    private int direction = 1;
+
+    /**
+     * Range of positions already preloaded (from inclusive, to exclusive).
+     */
+    private int preloadedFrom = 0, preloadedTo = 0;
+
+    /**
+     * True while the grid flings.
+     */
+    private boolean flinging = false;
+
+    /**
+     * Visible and total count of the last sample.
+     */
+    private int lastVisibleCount = 0, lastTotalCount = 0;
+
+    /**
+     * Preloads that may still be pending.
+     */
+    private List<ThumbnailRequest> pendingRequests = new ArrayList<ThumbnailRequest>();
+
+    /**
+     * Constructs the predictor.
+     *
+     * @param itemWorker
+     * @param thumbnailWorker
+     */
+    public ScrollPredictor(ItemWorker itemWorker, ThumbnailWorker thumbnailWorker) {
+        this.itemWorker = itemWorker;
+        this.thumbnailWorker = thumbnailWorker;
+    }
+
+    /**
+     * Set the number of columns of the grid.
+     *
+     * @param numColumns
+     */
+    public void setNumColumns(int numColumns) {
+        this.numColumns = Math.max(1, numColumns);
+        preloadedFrom = preloadedTo = 0;
+    }
+
+    /**
+     * Return the current velocity estimation.
+     *
+     * The estimation decays with the time since the last sample, a
+     * grid that stopped without going idle is not sampled anymore.
+     *
+     * @return rows per second, negative upwards
+     */
+    public float getVelocity() {
+        long elapsed = SystemClock.uptimeMillis() - lastTime;
+        if (elapsed <= MAX_SAMPLE_INTERVAL) {
+            return velocity;
+        }
+        return velocity * (float) Math.pow(0.5, (double) elapsed / VELOCITY_HALF_LIFE);
+    }
+
+    /**
+     * Inform the predictor that the grid came to rest.
+     *
+     * The velocity is reset, the direction of travel is kept for the
+     * rows preloaded once the grid settles.
+     */
+    public void setIdle() {
+        velocity = 0;
+    }
+
+    /**
+     * Inform the predictor whether the grid flings.
+     *
+     * A fling cancels the pending preloads, when it ends the rows
+     * ahead of the last position are preloaded.
+     *
+     * @param flinging
+     */
+    public void setFlinging(boolean flinging) {
+        if (flinging == this.flinging) {
+            return;
+        }
+        this.flinging = flinging;
+        if (flinging) {
+            for (ThumbnailRequest request : pendingRequests) {
+                request.cancel();
+            }
+            pendingRequests.clear();
+            preloadedFrom = preloadedTo = 0;
+        }
+        else if (lastFirst >= 0) {
+            preloadAhead(lastFirst, lastVisibleCount, lastTotalCount);
+        }
+    }
+
+    /**
+     * Sample the scroll position and preload ahead.
+     *
+     * @param firstVisible first visible position
+     * @param visibleCount number of visible positions
+     * @param totalCount number of positions
+     */
+    public void onScroll(int firstVisible, int visibleCount, int totalCount) {
+        long now = SystemClock.uptimeMillis();
+        if (firstVisible == lastFirst) {
+            return;
+        }
+        long interval = now - lastTime;
+        if (lastFirst >= 0 && interval > 0) {
+            float rows = (float) (firstVisible - lastFirst) / numColumns;
+            direction = rows < 0 ? -1 : 1;
+            float sample = rows * 1000f / interval;
+            if (interval > MAX_SAMPLE_INTERVAL) {
+                velocity = sample;
+            }
+            else {
+                velocity += (sample - velocity) * SMOOTHING;
+            }
+        }
+        lastFirst = firstVisible;
+        lastTime = now;
+        lastVisibleCount = visibleCount;
+        lastTotalCount = totalCount;
+        if (!flinging) {
+            preloadAhead(firstVisible, visibleCount, totalCount);
+        }
+    }
+
+    /**
+     * Preload the rows ahead in the direction of travel.
+     *
+     * @param firstVisible first visible position
+     * @param visibleCount number of visible positions
+     * @param totalCount number of positions
+     */
+    private void preloadAhead(int firstVisible, int visibleCount, int totalCount) {
+        // lookahead by velocity, capped by what fits into memory
+        int rows = Math.max(MIN_LOOKAHEAD_ROWS, 
+                (int) Math.ceil(Math.abs(getVelocity()) * LOOKAHEAD_TIME));
+        int maxRows = (thumbnailWorker.getMemCacheCapacity() - visibleCount) / numColumns;
+        rows = Math.min(rows, maxRows);
+        if (rows <= 0) {
+            return;
+        }
+
+        int from, to;
+        if (direction > 0) {
+            from = firstVisible + visibleCount;
+            to = Math.min(totalCount, from + rows * numColumns);
+        }
+        else {
+            to = firstVisible;
+            from = Math.max(0, to - rows * numColumns);
+        }
+        preload(from, to);
+    }
+
+    /**
+     * Preload the positions of the range not preloaded yet.
+     *
+     * @param from inclusive
+     * @param to exclusive
+     */
+    private void preload(int from, int to) {
+        Iterator<ThumbnailRequest> iter = pendingRequests.iterator();
+        while (iter.hasNext()) {
+            if (iter.next().isDone()) {
+                iter.remove();
+            }
+        }
+        for (int position = from; position < to; position++) {
+            if (position >= preloadedFrom && position < preloadedTo) {
+                continue;
+            }
+            Item item = itemWorker.peekItemByPosition(position);
+            if (item != null && !thumbnailWorker.isMemCached(item)) {
+                pendingRequests.add(thumbnailWorker.loadThumbnail(item, null, 
+                        PriorityExecutor.PRIORITY_PREFETCH));
+            }
+        }
+        preloadedFrom = from;
+        preloadedTo = to;
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android;
+
+import li.zeitgeist.android.worker.ThumbnailWorker;
+
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+
+/**
+ * Adapter for the first screen snapshot.
+ *
+ * Shows the placeholders of the previous session until the service
+ * is bound and the GalleryAdapter replaces it.
+ */
+public class SnapshotAdapter extends BaseAdapter {
+
+    /**
+     * The GalleryActivity instance that created the adapter.
+     */
+    private GalleryActivity galleryActivity;
+
+    /**
+     * The cells to show.
+     */
+    private FirstScreenSnapshot snapshot;
+
+    /**
+     * Constructs the adapter.
+     *
+     * @param galleryActivity that creates the adapter
+     * @param snapshot of the previous session
+     */
+    public SnapshotAdapter(GalleryActivity galleryActivity, FirstScreenSnapshot snapshot) {
+        super();
+        this.galleryActivity = galleryActivity;
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    public int getCount() {
+        return snapshot.getCount();
+    }
+
+    @Override
+    public Integer getItem(int position) {
+        return snapshot.getId(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return snapshot.getId(position);
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ThumbnailCellView cell;
+        if (convertView == null) {
+            cell = galleryActivity.createItemView();
+        }
+        else {
+            cell = (ThumbnailCellView) convertView;
+        }
+        if (cell.bind(snapshot.getId(position))) {
+            byte[] placeholder = snapshot.getPlaceholder(position);
+            if (placeholder != null) {
+                cell.setPlaceholder(ThumbnailWorker.createPlaceholderDrawable(
+                        galleryActivity.getResources(), placeholder));
+            }
+        }
+        return cell;
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import li.zeitgeist.android.worker.ThumbnailWorker;
+
+import li.zeitgeist.api.Item;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Delivers loaded thumbnails to the gallery cells once per frame.
+ *
+ * The thumbnail worker completes loads in its threads, one by one.
+ * Instead of posting a message to the UI thread for each of them,
+ * the results are collected and applied together at the next frame
+ * boundary, so a page load costs a few messages instead of dozens
+ * interleaved with the layout passes.
+ */
+public class ThumbnailBatcher {
+
+    /**
+     * Standard android logging tag.
+     */
+    private static final String TAG = ZeitgeistApp.TAG + ":ThumbnailBatcher";
+
+    /**
+     * Duration of a frame (ms), at 60 fps.
+     */
+    private static final long FRAME_INTERVAL = 16;
+
+    /**
+     * A loaded thumbnail waiting to be applied to its cell.
+     */
+    private static class Delivery {
+
+        /**
+         * The cell the thumbnail was requested for.
+         */
+        private final ThumbnailCellView cell;
+
+        /**
+         * The item of the thumbnail.
+         */
+        private final Item item;
+
+        /**
+         * The loaded thumbnail.
+         */
+        private final Bitmap bitmap;
+
+        public Delivery(ThumbnailCellView cell, Item item, Bitmap bitmap) {
+            this.cell = cell;
+            this.item = item;
+            this.bitmap = bitmap;
+        }
+    }
+
+    /**
+     * Handler of the UI thread.
+     */
+    private Handler handler;
+
+    /**
+     * Creates the drawables of the thumbnails.
+     */
+    private ThumbnailWorker thumbnailWorker;
+
+    /**
+     * Thumbnails waiting for the next frame, guarded by itself.
+     */
+    private List<Delivery> pending = new ArrayList<Delivery>();
+
+    /**
+     * Number of batches and deliveries, for the log.
+     */
+    private long batches = 0, deliveries = 0;
+
+    /**
+     * Applies all waiting thumbnails, runs in the UI thread.
+     */
+    private Runnable flush = new Runnable() {
+        public void run() {
+            List<Delivery> batch;
+            synchronized (pending) {
+                batch = pending;
+                pending = new ArrayList<Delivery>();
+            }
+            for (Delivery delivery : batch) {
+                apply(delivery);
+            }
+            batches++;
+            deliveries += batch.size();
+            if (batches % 50 == 0) {
+                Log.v(TAG, String.valueOf(deliveries) + " thumbnails in " + 
+                        String.valueOf(batches) + " batches");
+            }
+        }
+    };
+
+    /**
+     * Constructs the batcher, must be called in the UI thread.
+     *
+     * @param thumbnailWorker
+     */
+    public ThumbnailBatcher(ThumbnailWorker thumbnailWorker) {
+        this.thumbnailWorker = thumbnailWorker;
+        handler = new Handler();
+    }
+
+    /**
+     * Queue a loaded thumbnail for its cell, from any thread.
+     *
+     * @param cell the thumbnail was requested for
+     * @param item the thumbnail was loaded for
+     * @param bitmap loaded thumbnail (null on error)
+     */
+    public void deliver(ThumbnailCellView cell, Item item, Bitmap bitmap) {
+        boolean schedule;
+        synchronized (pending) {
+            schedule = pending.isEmpty();
+            pending.add(new Delivery(cell, item, bitmap));
+        }
+        if (schedule) {
+            // at the next frame boundary
+            long now = SystemClock.uptimeMillis();
+            handler.postAtTime(flush, now - now % FRAME_INTERVAL + FRAME_INTERVAL);
+        }
+    }
+
+    /**
+     * Show the thumbnail if the cell is still bound to the item.
+     *
+     * @param delivery
+     */
+    private void apply(Delivery delivery) {
+        if (delivery.cell.getItemId() != delivery.item.getId()) {
+            Log.w(TAG, "warning cell rebound: " + String.valueOf(delivery.item.getId()) + 
+                    " (loaded) item: " + String.valueOf(delivery.cell.getItemId()));
+            return;
+        }
+        if (delivery.bitmap == null) {
+            return; // keep the placeholder
+        }
+        delivery.cell.setThumbnail(
+                thumbnailWorker.getThumbnailDrawable(delivery.item, delivery.bitmap));
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android;
+
+import li.zeitgeist.android.worker.ThumbnailWorker.ThumbnailRequest;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.view.View;
+
+/**
+ * A single gallery cell.
+ *
+ * Draws the thumbnail of its item, or the placeholder until the
+ * thumbnail is loaded, or just the background if there is neither.
+ * The video overlay is part of the thumbnail drawable. Unlike a
+ * ViewSwitcher with a progress bar and an image view this is one
+ * view without children and without animations.
+ *
+ * Cells are square, the height follows the column width of the
+ * grid.
+ */
+public class ThumbnailCellView extends View {
+
+    /**
+     * Id of the item bound to the cell, 0 if unbound.
+     */
+    private int itemId = 0;
+
+    /**
+     * Shown until the thumbnail is loaded (may be null).
+     */
+    private Drawable placeholder;
+
+    /**
+     * The loaded thumbnail (may be null).
+     */
+    private Drawable thumbnail;
+
+    /**
+     * Pending thumbnail request of the bound item (may be null).
+     *
+     * Kept on the cell, so it goes away with the cell.
+     */
+    private ThumbnailRequest request;
+
+    /**
+     * Constructs an unbound cell.
+     *
+     * @param context
+     */
+    public ThumbnailCellView(Context context) {
+        super(context);
+        setBackgroundColor(context.getResources().getColor(R.color.gallery_item_view_background));
+        setPadding(GalleryActivity.THUMB_PADDING,
+                GalleryActivity.THUMB_PADDING,
+                GalleryActivity.THUMB_PADDING,
+                GalleryActivity.THUMB_PADDING);
+    }
+
+    /**
+     * Bind the cell to an item.
+     *
+     * The placeholder and thumbnail of the previous item are cleared
+     * and its pending request is cancelled, unless the cell is already
+     * bound to that item. The id is also set as the tag of the view.
+     *
+     * @param id of the item
+     * @return false if the cell was already bound to the item
+     */
+    public boolean bind(int id) {
+        if (id == itemId) {
+            return false;
+        }
+        itemId = id;
+        cancelRequest();
+        placeholder = null;
+        thumbnail = null;
+        setTag(id);
+        invalidate();
+        return true;
+    }
+
+    /**
+     * Return the id of the bound item.
+     *
+     * @return id or 0
+     */
+    public int getItemId() {
+        return itemId;
+    }
+
+    /**
+     * Set the placeholder shown until the thumbnail is loaded.
+     *
+     * @param placeholder drawable or null
+     */
+    public void setPlaceholder(Drawable placeholder) {
+        this.placeholder = placeholder;
+        if (thumbnail == null) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Set the loaded thumbnail.
+     *
+     * @param thumbnail drawable
+     */
+    public void setThumbnail(Drawable thumbnail) {
+        this.thumbnail = thumbnail;
+        invalidate();
+    }
+
+    /**
+     * Set the pending thumbnail request of the bound item.
+     *
+     * @param request
+     */
+    public void setRequest(ThumbnailRequest request) {
+        this.request = request;
+    }
+
+    /**
+     * Return the pending thumbnail request of the bound item.
+     *
+     * @return request or null
+     */
+    public ThumbnailRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Cancel the pending thumbnail request, if any.
+     */
+    public void cancelRequest() {
+        if (request != null) {
+            request.cancel();
+            request = null;
+        }
+    }
+
+    /**
+     * True if the thumbnail of the bound item is shown.
+     *
+     * @return boolean
+     */
+    public boolean hasThumbnail() {
+        return thumbnail != null;
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = MeasureSpec.getSize(widthMeasureSpec);
+        setMeasuredDimension(width, width);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        Drawable drawable = thumbnail != null ? thumbnail : placeholder;
+        if (drawable == null) {
+            return;
+        }
+        drawable.setBounds(getPaddingLeft(), getPaddingTop(),
+                getWidth() - getPaddingRight(), getHeight() - getPaddingBottom());
+        drawable.draw(canvas);
+    }
+}
@@ -0,0 +1,804 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.database.DataSetObserver;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.MotionEvent;
+import android.view.SoundEffectConstants;
+import android.view.VelocityTracker;
+import android.view.View;
+import android.view.ViewConfiguration;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.ListAdapter;
+import android.widget.Scroller;
+
+/**
+ * Recycling grid of square thumbnail cells.
+ *
+ * Used by the gallery instead of a GridView. All cells have the
+ * same size, so the row of a position and the scroll range follow
+ * from the item count alone, nothing is measured per item. Only
+ * the cells of the visible rows are attached, cells scrolled out
+ * are kept in a pool (of at most one screen) and reused.
+ *
+ * Binding a cell is split in two parts: the getView of the adapter
+ * is the synchronous part and must be cheap (placeholder, memory
+ * cache). If the adapter is a DeferredBinder, its bindDeferred is
+ * called for the newly bound cells after the layout pass, and not
+ * before the grid stopped flinging. After a fling it is called for
+ * all attached cells again, since a fling cancels their loads.
+ */
+public class ThumbnailGridView extends ViewGroup {
+
+    /**
+     * Standard android logging tag.
+     */
+    private static final String TAG = ZeitgeistApp.TAG + ":ThumbnailGridView";
+
+    /**
+     * The grid is not scrolling.
+     */
+    public static final int SCROLL_STATE_IDLE = 0;
+
+    /**
+     * The grid is dragged by the user.
+     */
+    public static final int SCROLL_STATE_TOUCH_SCROLL = 1;
+
+    /**
+     * The grid is flinging after the user let go.
+     */
+    public static final int SCROLL_STATE_FLING = 2;
+
+    /**
+     * Interface for listeners of clicked cells.
+     */
+    public interface OnItemClickListener {
+        public void onItemClick(ThumbnailGridView grid, View view, int position, long id);
+    }
+
+    /**
+     * Interface for listeners of the scroll state and position.
+     */
+    public interface OnScrollListener {
+        public void onScrollStateChanged(ThumbnailGridView grid, int scrollState);
+        public void onScroll(ThumbnailGridView grid, int firstVisibleItem,
+                int visibleItemCount, int totalItemCount);
+    }
+
+    /**
+     * Interface of adapters with a deferred (expensive) bind part.
+     */
+    public interface DeferredBinder {
+        public void bindDeferred(int position, View view);
+    }
+
+    /**
+     * Layout params of the attached cells, remember what is bound.
+     */
+    private static class CellLayoutParams extends ViewGroup.LayoutParams {
+
+        /**
+         * Position the cell is bound to.
+         */
+        private int position;
+
+        /**
+         * Item id the cell is bound to.
+         */
+        private long id;
+
+        /**
+         * True until the deferred part of the bind is started, set
+         * again for all cells when a fling starts (pending loads are
+         * cancelled then).
+         */
+        private boolean deferred;
+
+        public CellLayoutParams() {
+            super(WRAP_CONTENT, WRAP_CONTENT);
+        }
+    }
+
+    /**
+     * Data source of the cells.
+     */
+    private ListAdapter adapter;
+
+    /**
+     * Number of items, updated when the adapter reports a change.
+     */
+    private int itemCount = 0;
+
+    /**
+     * Set when the adapter reported a change, all cells are rebound
+     * in the next layout pass.
+     */
+    private boolean dataChanged = false;
+
+    /**
+     * Number of cells in each row.
+     */
+    private int numColumns = 1;
+
+    /**
+     * Width (and height) of the cells.
+     */
+    private int columnWidth = 0;
+
+    /**
+     * Space between the columns.
+     */
+    private int horizontalSpacing = 0;
+
+    /**
+     * Space between the rows, also above the first one.
+     */
+    private int verticalSpacing = 0;
+
+    /**
+     * Pixels scrolled from the top of the first row.
+     */
+    private int scrollOffset = 0;
+
+    /**
+     * Position to show at the next layout pass, -1 for none.
+     */
+    private int pendingPosition = -1;
+
+    /**
+     * Distance of the pending position from the top of the grid.
+     */
+    private int pendingTop = 0;
+
+    /**
+     * Detached cells ready for reuse.
+     */
+    private List<View> recycledCells = new ArrayList<View>();
+
+    /**
+     * Current scroll state.
+     */
+    private int scrollState = SCROLL_STATE_IDLE;
+
+    /**
+     * Animates flings.
+     */
+    private Scroller scroller;
+
+    /**
+     * Tracks the velocity of a drag, null if not touched.
+     */
+    private VelocityTracker velocityTracker;
+
+    /**
+     * Distance a touch can wander before it is a drag.
+     */
+    private int touchSlop;
+
+    /**
+     * Velocity bounds of a fling.
+     */
+    private int minimumVelocity, maximumVelocity;
+
+    /**
+     * Y of the touch down and the last move event.
+     */
+    private float downY, lastY;
+
+    /**
+     * True if the current touch is a drag, not a tap.
+     */
+    private boolean dragging = false;
+
+    /**
+     * True if the deferred bind is posted.
+     */
+    private boolean deferredPosted = false;
+
+    /**
+     * Informed about clicked cells.
+     */
+    private OnItemClickListener itemClickListener;
+
+    /**
+     * Informed about scrolling.
+     */
+    private OnScrollListener scrollListener;
+
+    /**
+     * Informs the grid about changes of the adapter.
+     */
+    private DataSetObserver dataSetObserver = new DataSetObserver() {
+        @Override
+        public void onChanged() {
+            dataChanged = true;
+            requestLayout();
+        }
+
+        @Override
+        public void onInvalidated() {
+            dataChanged = true;
+            requestLayout();
+        }
+    };
+
+    /**
+     * Runs the deferred part of the bind of the attached cells.
+     */
+    private Runnable deferredBind = new Runnable() {
+        public void run() {
+            deferredPosted = false;
+            if (scrollState == SCROLL_STATE_FLING || !(adapter instanceof DeferredBinder)) {
+                return;
+            }
+            DeferredBinder binder = (DeferredBinder) adapter;
+            for (int i = 0; i < getChildCount(); i++) {
+                View cell = getChildAt(i);
+                CellLayoutParams params = (CellLayoutParams) cell.getLayoutParams();
+                if (params.deferred) {
+                    params.deferred = false;
+                    binder.bindDeferred(params.position, cell);
+                }
+            }
+        }
+    };
+
+    /**
+     * Constructs the grid.
+     *
+     * @param context
+     */
+    public ThumbnailGridView(Context context) {
+        super(context);
+        init(context);
+    }
+
+    /**
+     * Constructs the grid from a layout.
+     *
+     * @param context
+     * @param attrs
+     */
+    public ThumbnailGridView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init(context);
+    }
+
+    /**
+     * Setup scrolling.
+     *
+     * @param context
+     */
+    private void init(Context context) {
+        scroller = new Scroller(context);
+        ViewConfiguration configuration = ViewConfiguration.get(context);
+        touchSlop = configuration.getScaledTouchSlop();
+        minimumVelocity = configuration.getScaledMinimumFlingVelocity();
+        maximumVelocity = configuration.getScaledMaximumFlingVelocity();
+        setWillNotDraw(false); // for the scrollbar
+        setVerticalScrollBarEnabled(true);
+    }
+
+    /**
+     * Set the adapter that provides the cells.
+     *
+     * @param adapter
+     */
+    public void setAdapter(ListAdapter adapter) {
+        if (this.adapter != null) {
+            this.adapter.unregisterDataSetObserver(dataSetObserver);
+        }
+        this.adapter = adapter;
+        if (adapter != null) {
+            adapter.registerDataSetObserver(dataSetObserver);
+        }
+        removeAllViewsInLayout();
+        recycledCells.clear();
+        scrollOffset = 0;
+        dataChanged = true;
+        requestLayout();
+    }
+
+    /**
+     * Return the adapter of the grid.
+     *
+     * @return adapter or null
+     */
+    public ListAdapter getAdapter() {
+        return adapter;
+    }
+
+    /**
+     * Set the number of cells in each row.
+     *
+     * @param numColumns
+     */
+    public void setNumColumns(int numColumns) {
+        this.numColumns = Math.max(1, numColumns);
+        requestLayout();
+    }
+
+    /**
+     * Set the width (and height) of the cells.
+     *
+     * @param columnWidth
+     */
+    public void setColumnWidth(int columnWidth) {
+        this.columnWidth = columnWidth;
+        requestLayout();
+    }
+
+    /**
+     * Set the space between the columns.
+     *
+     * @param horizontalSpacing
+     */
+    public void setHorizontalSpacing(int horizontalSpacing) {
+        this.horizontalSpacing = horizontalSpacing;
+        requestLayout();
+    }
+
+    /**
+     * Set the space between the rows.
+     *
+     * @param verticalSpacing
+     */
+    public void setVerticalSpacing(int verticalSpacing) {
+        this.verticalSpacing = verticalSpacing;
+        requestLayout();
+    }
+
+    /**
+     * Set the listener for clicked cells.
+     *
+     * @param listener
+     */
+    public void setOnItemClickListener(OnItemClickListener listener) {
+        itemClickListener = listener;
+    }
+
+    /**
+     * Set the listener for scrolling.
+     *
+     * @param listener
+     */
+    public void setOnScrollListener(OnScrollListener listener) {
+        scrollListener = listener;
+    }
+
+    /**
+     * Rebind all attached cells in the next layout pass.
+     */
+    public void invalidateViews() {
+        dataChanged = true;
+        requestLayout();
+    }
+
+    /**
+     * Return the position of the first attached cell.
+     *
+     * @return position
+     */
+    public int getFirstVisiblePosition() {
+        if (getChildCount() == 0) {
+            return 0;
+        }
+        return ((CellLayoutParams) getChildAt(0).getLayoutParams()).position;
+    }
+
+    /**
+     * Return the item id of the first attached cell.
+     *
+     * Together with getAnchorTop this restores the scroll position
+     * after the positions changed.
+     *
+     * @return id or AdapterView.INVALID_ROW_ID
+     */
+    public long getAnchorId() {
+        if (getChildCount() == 0) {
+            return AdapterView.INVALID_ROW_ID;
+        }
+        return ((CellLayoutParams) getChildAt(0).getLayoutParams()).id;
+    }
+
+    /**
+     * Return the distance of the first attached cell from the top.
+     *
+     * @return pixels, negative if partly scrolled out
+     */
+    public int getAnchorTop() {
+        if (getChildCount() == 0) {
+            return 0;
+        }
+        return getChildAt(0).getTop();
+    }
+
+    /**
+     * Scroll the row of the position to the top.
+     *
+     * @param position
+     */
+    public void setSelection(int position) {
+        setSelectionFromTop(position, verticalSpacing);
+    }
+
+    /**
+     * Scroll the row of the position to the given distance from
+     * the top, applied in the next layout pass.
+     *
+     * @param position
+     * @param top distance in pixels
+     */
+    public void setSelectionFromTop(int position, int top) {
+        pendingPosition = position;
+        pendingTop = top;
+        if (scrollState == SCROLL_STATE_FLING) {
+            scroller.abortAnimation();
+            setScrollState(SCROLL_STATE_IDLE);
+        }
+        requestLayout();
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        setMeasuredDimension(MeasureSpec.getSize(widthMeasureSpec),
+                MeasureSpec.getSize(heightMeasureSpec));
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        layoutCells();
+    }
+
+    /**
+     * Height of a row including the spacing.
+     *
+     * @return pixels
+     */
+    private int getRowHeight() {
+        return columnWidth + verticalSpacing;
+    }
+
+    /**
+     * Maximum scroll offset, the last row is at the bottom then.
+     *
+     * @return pixels
+     */
+    private int getMaxScrollOffset() {
+        int rows = (itemCount + numColumns - 1) / numColumns;
+        return Math.max(0, rows * getRowHeight() + verticalSpacing - getHeight());
+    }
+
+    /**
+     * Attach the cells of the visible rows, recycle the others and
+     * position them for the current scroll offset.
+     */
+    private void layoutCells() {
+        if (adapter == null || columnWidth <= 0 || getHeight() == 0) {
+            return;
+        }
+        int rowHeight = getRowHeight();
+
+        // cells of the previous data, reused for the same item
+        Map<Long, View> previousCells = null;
+        if (dataChanged) {
+            dataChanged = false;
+            itemCount = adapter.getCount();
+            Log.v(TAG, "rebind cells for " + String.valueOf(itemCount) + " items");
+            if (adapter.hasStableIds()) {
+                previousCells = new HashMap<Long, View>();
+                for (int i = 0; i < getChildCount(); i++) {
+                    View cell = getChildAt(i);
+                    previousCells.put(((CellLayoutParams) cell.getLayoutParams()).id, cell);
+                }
+            }
+            else {
+                for (int i = 0; i < getChildCount(); i++) {
+                    recycledCells.add(getChildAt(i));
+                }
+            }
+            removeAllViewsInLayout();
+        }
+
+        if (pendingPosition >= 0) {
+            scrollOffset = verticalSpacing + (pendingPosition / numColumns) * rowHeight - pendingTop;
+            pendingPosition = -1;
+        }
+        scrollOffset = Math.max(0, Math.min(scrollOffset, getMaxScrollOffset()));
+
+        int first = 0, last = -1;
+        if (itemCount > 0) {
+            first = (scrollOffset / rowHeight) * numColumns;
+            last = Math.min(itemCount, ((scrollOffset + getHeight()) / rowHeight + 1) * numColumns) - 1;
+        }
+
+        // detach the cells scrolled out
+        int maxRecycled = (getHeight() / rowHeight + 2) * numColumns;
+        for (int i = getChildCount() - 1; i >= 0; i--) {
+            View cell = getChildAt(i);
+            int position = ((CellLayoutParams) cell.getLayoutParams()).position;
+            if (position < first || position > last) {
+                removeViewInLayout(cell);
+                if (recycledCells.size() < maxRecycled) {
+                    recycledCells.add(cell);
+                }
+            }
+        }
+
+        // attach the cells scrolled in, above and below the others
+        int attachedFirst = last + 1, attachedLast = last;
+        if (getChildCount() > 0) {
+            attachedFirst = getFirstVisiblePosition();
+            attachedLast = attachedFirst + getChildCount() - 1;
+        }
+        boolean bound = false;
+        for (int position = first; position <= last; position++) {
+            if (position < attachedFirst) {
+                attachCell(position, position - first, previousCells);
+                bound = true;
+            }
+            else if (position > attachedLast) {
+                attachCell(position, -1, previousCells);
+                bound = true;
+            }
+        }
+        if (previousCells != null) {
+            for (View cell : previousCells.values()) {
+                if (recycledCells.size() < maxRecycled) {
+                    recycledCells.add(cell);
+                }
+            }
+        }
+
+        // position the cells
+        int left = (getWidth() - numColumns * columnWidth - (numColumns - 1) * horizontalSpacing) / 2;
+        for (int i = 0; i < getChildCount(); i++) {
+            View cell = getChildAt(i);
+            int position = ((CellLayoutParams) cell.getLayoutParams()).position;
+            int cellLeft = left + (position % numColumns) * (columnWidth + horizontalSpacing);
+            int cellTop = verticalSpacing + (position / numColumns) * rowHeight - scrollOffset;
+            cell.layout(cellLeft, cellTop, cellLeft + columnWidth, cellTop + columnWidth);
+        }
+
+        if (bound && !deferredPosted && scrollState != SCROLL_STATE_FLING) {
+            deferredPosted = true;
+            post(deferredBind);
+        }
+        if (scrollListener != null) {
+            scrollListener.onScroll(this, getFirstVisiblePosition(), getChildCount(), itemCount);
+        }
+    }
+
+    /**
+     * Bind a cell to the position (synchronous part) and attach it.
+     *
+     * @param position
+     * @param index child index, -1 to append
+     * @param previousCells cells of the previous data by item id (may be null)
+     */
+    private void attachCell(int position, int index, Map<Long, View> previousCells) {
+        View convertView = null;
+        long id = adapter.getItemId(position);
+        if (previousCells != null) {
+            convertView = previousCells.remove(id);
+        }
+        if (convertView == null && !recycledCells.isEmpty()) {
+            convertView = recycledCells.remove(recycledCells.size() - 1);
+        }
+        View cell = adapter.getView(position, convertView, this);
+
+        CellLayoutParams params;
+        if (cell.getLayoutParams() instanceof CellLayoutParams) {
+            params = (CellLayoutParams) cell.getLayoutParams();
+        }
+        else {
+            params = new CellLayoutParams();
+        }
+        params.position = position;
+        params.id = id;
+        params.deferred = true;
+        addViewInLayout(cell, index, params, true);
+
+        int spec = MeasureSpec.makeMeasureSpec(columnWidth, MeasureSpec.EXACTLY);
+        cell.measure(spec, spec);
+    }
+
+    /**
+     * Scroll the grid by the given distance.
+     *
+     * @param delta pixels, positive scrolls down
+     */
+    private void scrollGrid(int delta) {
+        int offset = Math.max(0, Math.min(scrollOffset + delta, getMaxScrollOffset()));
+        if (offset == scrollOffset) {
+            return;
+        }
+        scrollOffset = offset;
+        layoutCells();
+        invalidate();
+        awakenScrollBars();
+    }
+
+    /**
+     * Change the scroll state and inform the listener.
+     *
+     * @param state
+     */
+    private void setScrollState(int state) {
+        if (state == scrollState) {
+            return;
+        }
+        int previous = scrollState;
+        scrollState = state;
+        if (state == SCROLL_STATE_FLING) {
+            // the listener cancels the loads, bind all cells again afterwards,
+            // the binder skips the cells that already show their thumbnail
+            for (int i = 0; i < getChildCount(); i++) {
+                ((CellLayoutParams) getChildAt(i).getLayoutParams()).deferred = true;
+            }
+        }
+        if (scrollListener != null) {
+            scrollListener.onScrollStateChanged(this, state);
+        }
+        if (previous == SCROLL_STATE_FLING && !deferredPosted) {
+            // bind the cells that flew in
+            deferredPosted = true;
+            post(deferredBind);
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (velocityTracker == null) {
+            velocityTracker = VelocityTracker.obtain();
+        }
+        velocityTracker.addMovement(event);
+
+        float y = event.getY();
+        switch (event.getAction()) {
+        case MotionEvent.ACTION_DOWN:
+            // a touch stops the fling
+            dragging = scrollState == SCROLL_STATE_FLING;
+            if (dragging) {
+                scroller.abortAnimation();
+                setScrollState(SCROLL_STATE_TOUCH_SCROLL);
+            }
+            downY = lastY = y;
+            break;
+
+        case MotionEvent.ACTION_MOVE:
+            if (!dragging && Math.abs(y - downY) > touchSlop) {
+                dragging = true;
+                setScrollState(SCROLL_STATE_TOUCH_SCROLL);
+            }
+            if (dragging) {
+                scrollGrid((int) (lastY - y));
+                lastY = y;
+            }
+            break;
+
+        case MotionEvent.ACTION_UP:
+            if (dragging) {
+                velocityTracker.computeCurrentVelocity(1000, maximumVelocity);
+                int velocity = (int) velocityTracker.getYVelocity();
+                if (Math.abs(velocity) > minimumVelocity) {
+                    scroller.fling(0, scrollOffset, 0, -velocity, 0, 0, 0, getMaxScrollOffset());
+                    setScrollState(SCROLL_STATE_FLING);
+                    postInvalidate();
+                }
+                else {
+                    setScrollState(SCROLL_STATE_IDLE);
+                }
+            }
+            else {
+                performCellClick(event.getX(), y);
+            }
+            releaseVelocityTracker();
+            break;
+
+        case MotionEvent.ACTION_CANCEL:
+            if (dragging) {
+                setScrollState(SCROLL_STATE_IDLE);
+            }
+            releaseVelocityTracker();
+            break;
+        }
+        return true;
+    }
+
+    @Override
+    public void computeScroll() {
+        if (scrollState != SCROLL_STATE_FLING) {
+            return;
+        }
+        if (scroller.computeScrollOffset()) {
+            int y = scroller.getCurrY();
+            scrollGrid(y - scrollOffset);
+            if (!scroller.isFinished() && scrollOffset == y) {
+                postInvalidate();
+                return;
+            }
+            scroller.abortAnimation(); // finished or at the edge
+        }
+        setScrollState(SCROLL_STATE_IDLE);
+    }
+
+    /**
+     * Inform the listener about a tapped cell.
+     *
+     * @param x of the tap
+     * @param y of the tap
+     */
+    private void performCellClick(float x, float y) {
+        for (int i = 0; i < getChildCount(); i++) {
+            View cell = getChildAt(i);
+            if (x >= cell.getLeft() && x < cell.getRight() &&
+                    y >= cell.getTop() && y < cell.getBottom()) {
+                CellLayoutParams params = (CellLayoutParams) cell.getLayoutParams();
+                if (itemClickListener != null) {
+                    playSoundEffect(SoundEffectConstants.CLICK);
+                    itemClickListener.onItemClick(this, cell, params.position, params.id);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Release the velocity tracker at the end of a touch.
+     */
+    private void releaseVelocityTracker() {
+        if (velocityTracker != null) {
+            velocityTracker.recycle();
+            velocityTracker = null;
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        removeCallbacks(deferredBind);
+        deferredPosted = false;
+        releaseVelocityTracker();
+    }
+
+    @Override
+    protected int computeVerticalScrollRange() {
+        return getMaxScrollOffset() + getHeight();
+    }
+
+    @Override
+    protected int computeVerticalScrollOffset() {
+        return scrollOffset;
+    }
+
+    @Override
+    protected int computeVerticalScrollExtent() {
+        return getHeight();
+    }
+}
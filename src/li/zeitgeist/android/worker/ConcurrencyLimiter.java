@@ -0,0 +1,191 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android.worker;
+
+import li.zeitgeist.android.ZeitgeistApp;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Adaptive limit of concurrent downloads (AIMD).
+ *
+ * Every download that finishes within a tolerance of the lowest
+ * observed latency raises the limit additively (by one per limit
+ * downloads). Errors and downloads that take much longer than
+ * that baseline, a sign of a congested link or an overloaded
+ * server, cut the limit multiplicatively. The limit always stays
+ * within the configured bounds.
+ */
+public class ConcurrencyLimiter {
+
+    /**
+     * Standard android logging tag.
+     */
+    private static final String TAG = ZeitgeistApp.TAG + ":ConcurrencyLimiter";
+
+    /**
+     * Latency above baseline times this factor counts as congestion.
+     */
+    private static final double TOLERANCE = 2.0;
+
+    /**
+     * Factor the limit is multiplied with on congestion.
+     */
+    private static final double BACKOFF = 0.7;
+
+    /**
+     * Weight of a new sample in the (slowly rising) baseline.
+     */
+    private static final double BASELINE_DRIFT = 0.01;
+
+    /**
+     * Minimum time between two decreases.
+     */
+    private static final long MIN_DECREASE_INTERVAL = 250;
+
+    /**
+     * Interface for listeners informed about a changed limit.
+     */
+    public interface LimitListener {
+        public void onLimitChanged(int limit);
+    }
+
+    /**
+     * Lower bound of the limit.
+     */
+    private final int minLimit;
+
+    /**
+     * Upper bound of the limit.
+     */
+    private final int maxLimit;
+
+    /**
+     * Current (fractional) limit.
+     */
+    private double limit;
+
+    /**
+     * Lowest observed latency, rises slowly to follow link changes.
+     */
+    private double baseline = 0;
+
+    /**
+     * Uptime of the last decrease.
+     */
+    private long decreasedAt = 0;
+
+    /**
+     * Informed when the integer limit changes.
+     */
+    private LimitListener listener;
+
+    /**
+     * Constructs the limiter.
+     *
+     * @param minLimit lower bound
+     * @param maxLimit upper bound
+     * @param initialLimit limit to start with
+     * @param listener informed about changes (may be null)
+     */
+    public ConcurrencyLimiter(int minLimit, int maxLimit, int initialLimit,
+            LimitListener listener) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.listener = listener;
+        limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Return the current limit.
+     *
+     * @return number of concurrent downloads
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Record a successful download.
+     *
+     * @param latencyMillis time the download took
+     */
+    public void onSuccess(long latencyMillis) {
+        int oldLimit, newLimit;
+        synchronized (this) {
+            oldLimit = (int) limit;
+            if (baseline == 0 || latencyMillis < baseline) {
+                baseline = latencyMillis;
+            }
+            else {
+                baseline += (latencyMillis - baseline) * BASELINE_DRIFT;
+            }
+
+            if (latencyMillis > baseline * TOLERANCE) {
+                decrease();
+            }
+            else {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+            newLimit = (int) limit;
+        }
+        notifyChanged(oldLimit, newLimit);
+    }
+
+    /**
+     * Record a failed download (connection error, timeout, ...).
+     */
+    public void onError() {
+        int oldLimit, newLimit;
+        synchronized (this) {
+            oldLimit = (int) limit;
+            decrease();
+            newLimit = (int) limit;
+        }
+        notifyChanged(oldLimit, newLimit);
+    }
+
+    /**
+     * Multiplicative decrease, at most once per interval so a burst
+     * of slow downloads of the same congestion counts once.
+     */
+    private void decrease() {
+        long now = SystemClock.uptimeMillis();
+        if (now - decreasedAt < Math.max(MIN_DECREASE_INTERVAL, (long) baseline)) {
+            return;
+        }
+        decreasedAt = now;
+        limit = Math.max(minLimit, limit * BACKOFF);
+    }
+
+    /**
+     * Inform the listener if the integer limit changed.
+     *
+     * @param oldLimit
+     * @param newLimit
+     */
+    private void notifyChanged(int oldLimit, int newLimit) {
+        if (oldLimit != newLimit) {
+            Log.d(TAG, "download concurrency limit: " + String.valueOf(newLimit));
+            if (listener != null) {
+                listener.onLimitChanged(newLimit);
+            }
+        }
+    }
+}
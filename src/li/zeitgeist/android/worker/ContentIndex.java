@@ -0,0 +1,534 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android.worker;
+
+import li.zeitgeist.android.ZeitgeistApp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Maps item ids to the id their thumbnail content is cached under.
+ *
+ * Reposted images have identical thumbnails. The first item seen
+ * with a content hash owns it; items with the same content resolve
+ * to that content id, so they share one file in the disk cache and
+ * one bitmap in memory. Ids never registered resolve to themselves.
+ *
+ * Like the DiskCacheIndex both maps (hash to owner, duplicate to
+ * owner) are open addressing tables of primitives. The mapping is
+ * appended to a log file and read back at startup, new records are
+ * appended in batches by the writer stage. When a content is
+ * evicted from the disk cache its records are dropped and the log
+ * is rewritten by the next flush.
+ */
+public class ContentIndex {
+
+    /**
+     * Standard android logging tag.
+     */
+    private static final String TAG = ZeitgeistApp.TAG + ":ContentIndex";
+
+    /**
+     * Marks an empty slot in the tables, ids are always positive.
+     */
+    private static final int EMPTY = 0;
+
+    /**
+     * Log of records: (owner id, content hash) or (-duplicate id,
+     * owner id).
+     */
+    private File file;
+
+    /**
+     * Content hashes of the owners, linear probing, the size is a
+     * power of two.
+     */
+    private long[] hashes = new long[1024];
+
+    /**
+     * Owner of the hash in the same slot, EMPTY for free slots.
+     */
+    private int[] owners = new int[1024];
+
+    /**
+     * Number of owners.
+     */
+    private int ownerCount = 0;
+
+    /**
+     * Ids of the items whose content is owned by another item,
+     * linear probing, the size is a power of two.
+     */
+    private int[] duplicates = new int[256];
+
+    /**
+     * Content id (owner) of the duplicate in the same slot.
+     */
+    private int[] duplicateOwners = new int[256];
+
+    /**
+     * Number of duplicates.
+     */
+    private int duplicateCount = 0;
+
+    /**
+     * Records not yet appended to the log.
+     */
+    private List<long[]> pendingRecords = new ArrayList<long[]>();
+
+    /**
+     * True while a flush of the pending records is scheduled.
+     */
+    private boolean flushScheduled = false;
+
+    /**
+     * True if records were dropped, the next flush rewrites the log.
+     */
+    private boolean compactPending = false;
+
+    /**
+     * Constructs the index, call load() to read the log.
+     *
+     * @param file of the log
+     */
+    public ContentIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Read the records of the log.
+     *
+     * This is done once at startup, in a background thread.
+     */
+    public void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            try {
+                while (true) {
+                    int id = in.readInt();
+                    long value = in.readLong();
+                    synchronized (this) {
+                        if (id < 0) {
+                            putDuplicate(-id, (int) value);
+                        }
+                        else {
+                            map(id, value);
+                        }
+                    }
+                }
+            }
+            catch (EOFException e) {
+                // end of the log (or a truncated last record)
+            }
+            finally {
+                in.close();
+            }
+            Log.d(TAG, "indexed " + String.valueOf(ownerCount) + " thumbnail contents, " +
+                    String.valueOf(duplicateCount) + " duplicates");
+        }
+        catch (IOException e) {
+            Log.e(TAG, "unable to read content index: " + file.getAbsolutePath());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Return the id the thumbnail of the item is cached under.
+     *
+     * @param id of the item
+     * @return content id
+     */
+    public synchronized int resolve(int id) {
+        int i = findDuplicate(id);
+        return i >= 0 ? duplicateOwners[i] : id;
+    }
+
+    /**
+     * Register the downloaded content of an item.
+     *
+     * The record is only appended to the log by the next flush.
+     *
+     * @param id of the item
+     * @param hash of the content
+     * @return content id the thumbnail is cached under
+     * @see #scheduleFlush()
+     */
+    public synchronized int register(int id, long hash) {
+        int i = findHash(hash);
+        if (i >= 0 && resolve(id) == owners[i]) {
+            return owners[i]; // known
+        }
+        int contentId = map(id, hash);
+        if (contentId == id) {
+            pendingRecords.add(new long[] {id, hash});
+        }
+        else {
+            pendingRecords.add(new long[] {-id, contentId});
+        }
+        return contentId;
+    }
+
+    /**
+     * Forget a content evicted from the disk cache.
+     *
+     * The owner and its duplicates resolve to themselves again until
+     * their thumbnails are downloaded again.
+     *
+     * @param contentId of the evicted thumbnail
+     */
+    public synchronized void evict(int contentId) {
+        boolean removed = false;
+        for (int i = 0; i < owners.length; i++) {
+            if (owners[i] == contentId) {
+                removeHashAt(i);
+                removed = true;
+                break;
+            }
+        }
+        // collected first, removing shifts entries between slots
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < duplicates.length; i++) {
+            if (duplicates[i] != EMPTY && duplicateOwners[i] == contentId) {
+                ids.add(duplicates[i]);
+            }
+        }
+        for (int id : ids) {
+            removeDuplicateAt(findDuplicate(id));
+        }
+        if (removed || !ids.isEmpty()) {
+            compactPending = true;
+        }
+    }
+
+    /**
+     * Claim the flush of the pending records.
+     *
+     * @return true if the caller has to schedule a flush
+     */
+    public synchronized boolean scheduleFlush() {
+        if (flushScheduled || (pendingRecords.isEmpty() && !compactPending)) {
+            return false;
+        }
+        flushScheduled = true;
+        return true;
+    }
+
+    /**
+     * Append the pending records to the log, in a single write, or
+     * rewrite the log if records were dropped.
+     *
+     * Only called by the writer stage, also after other writes in
+     * case a scheduled flush was dropped from its queue.
+     */
+    public void flush() {
+        List<long[]> records;
+        boolean rewrite;
+        synchronized (this) {
+            flushScheduled = false;
+            rewrite = compactPending;
+            compactPending = false;
+            if (rewrite) {
+                records = getRecords();
+            }
+            else if (pendingRecords.isEmpty()) {
+                return;
+            }
+            else {
+                records = pendingRecords;
+            }
+            pendingRecords = new ArrayList<long[]>();
+        }
+        if (rewrite) {
+            // the partial file is deleted by the disk cache scan
+            File partial = new File(file.getPath() + DiskCacheIndex.PARTIAL_SUFFIX);
+            if (write(partial, records, false) && !partial.renameTo(file)) {
+                Log.e(TAG, "unable to replace content index: " + file.getAbsolutePath());
+                partial.delete();
+            }
+        }
+        else {
+            write(file, records, true);
+        }
+    }
+
+    /**
+     * Write records to a log file.
+     *
+     * @param target file
+     * @param records (id, value) pairs
+     * @param append or truncate the file
+     * @return false on errors
+     */
+    private boolean write(File target, List<long[]> records, boolean append) {
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(target, append)));
+            try {
+                for (long[] record : records) {
+                    out.writeInt((int) record[0]);
+                    out.writeLong(record[1]);
+                }
+            }
+            finally {
+                out.close();
+            }
+            return true;
+        }
+        catch (IOException e) {
+            Log.e(TAG, "unable to write content index: " + target.getAbsolutePath());
+            return false;
+        }
+    }
+
+    /**
+     * Return the records of the whole mapping, owners first.
+     *
+     * @return records
+     */
+    private List<long[]> getRecords() {
+        List<long[]> records = new ArrayList<long[]>(ownerCount + duplicateCount);
+        for (int i = 0; i < owners.length; i++) {
+            if (owners[i] != EMPTY) {
+                records.add(new long[] {owners[i], hashes[i]});
+            }
+        }
+        for (int i = 0; i < duplicates.length; i++) {
+            if (duplicates[i] != EMPTY) {
+                records.add(new long[] {-duplicates[i], duplicateOwners[i]});
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Add a content of an item to the tables.
+     *
+     * @param id of the item
+     * @param hash of the content
+     * @return content id
+     */
+    private int map(int id, long hash) {
+        int i = findHash(hash);
+        if (i < 0) {
+            putHash(hash, id);
+        }
+        else if (owners[i] != id) {
+            putDuplicate(id, owners[i]);
+            return owners[i];
+        }
+        i = findDuplicate(id);
+        if (i >= 0) {
+            removeDuplicateAt(i);
+        }
+        return id;
+    }
+
+    /**
+     * Return the slot of a content hash.
+     *
+     * @param hash
+     * @return slot or -1
+     */
+    private int findHash(long hash) {
+        int mask = owners.length - 1;
+        for (int i = spread((int) (hash ^ (hash >>> 32))) & mask; owners[i] != EMPTY; 
+                i = (i + 1) & mask) {
+            if (hashes[i] == hash) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add the owner of a new content hash.
+     *
+     * @param hash
+     * @param owner id
+     */
+    private void putHash(long hash, int owner) {
+        if (owner <= 0) {
+            return;
+        }
+        if ((ownerCount + 1) * 2 > owners.length) {
+            long[] oldHashes = hashes;
+            int[] oldOwners = owners;
+            hashes = new long[oldOwners.length * 2];
+            owners = new int[oldOwners.length * 2];
+            ownerCount = 0;
+            for (int i = 0; i < oldOwners.length; i++) {
+                if (oldOwners[i] != EMPTY) {
+                    putHash(oldHashes[i], oldOwners[i]);
+                }
+            }
+        }
+        int mask = owners.length - 1;
+        int i = spread((int) (hash ^ (hash >>> 32))) & mask;
+        while (owners[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        hashes[i] = hash;
+        owners[i] = owner;
+        ownerCount++;
+    }
+
+    /**
+     * Remove the content hash in a slot.
+     *
+     * @param i slot
+     */
+    private void removeHashAt(int i) {
+        int mask = owners.length - 1;
+        owners[i] = EMPTY;
+        ownerCount--;
+
+        // move following entries of the probe sequence into the gap
+        for (int j = (i + 1) & mask; owners[j] != EMPTY; j = (j + 1) & mask) {
+            int home = spread((int) (hashes[j] ^ (hashes[j] >>> 32))) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                hashes[i] = hashes[j];
+                owners[i] = owners[j];
+                owners[j] = EMPTY;
+                i = j;
+            }
+        }
+    }
+
+    /**
+     * Return the slot of a duplicate.
+     *
+     * @param id of the item
+     * @return slot or -1
+     */
+    private int findDuplicate(int id) {
+        int mask = duplicates.length - 1;
+        for (int i = spread(id) & mask; duplicates[i] != EMPTY; i = (i + 1) & mask) {
+            if (duplicates[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add or replace the owner of a duplicate.
+     *
+     * @param id of the item
+     * @param owner content id
+     */
+    private void putDuplicate(int id, int owner) {
+        if (id <= 0) {
+            return;
+        }
+        if ((duplicateCount + 1) * 2 > duplicates.length) {
+            int[] oldDuplicates = duplicates;
+            int[] oldOwners = duplicateOwners;
+            duplicates = new int[oldDuplicates.length * 2];
+            duplicateOwners = new int[oldDuplicates.length * 2];
+            duplicateCount = 0;
+            for (int i = 0; i < oldDuplicates.length; i++) {
+                if (oldDuplicates[i] != EMPTY) {
+                    putDuplicate(oldDuplicates[i], oldOwners[i]);
+                }
+            }
+        }
+        int mask = duplicates.length - 1;
+        int i = spread(id) & mask;
+        while (duplicates[i] != EMPTY) {
+            if (duplicates[i] == id) {
+                duplicateOwners[i] = owner;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        duplicates[i] = id;
+        duplicateOwners[i] = owner;
+        duplicateCount++;
+    }
+
+    /**
+     * Remove the duplicate in a slot.
+     *
+     * @param i slot
+     */
+    private void removeDuplicateAt(int i) {
+        int mask = duplicates.length - 1;
+        duplicates[i] = EMPTY;
+        duplicateCount--;
+
+        // move following entries of the probe sequence into the gap
+        for (int j = (i + 1) & mask; duplicates[j] != EMPTY; j = (j + 1) & mask) {
+            int home = spread(duplicates[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                duplicates[i] = duplicates[j];
+                duplicateOwners[i] = duplicateOwners[j];
+                duplicates[j] = EMPTY;
+                i = j;
+            }
+        }
+    }
+
+    /**
+     * Spread the (mostly sequential) ids over a table.
+     *
+     * @param h id or folded hash
+     * @return hash
+     */
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Hash of the thumbnail content (the first 64 bits of its MD5).
+     *
+     * @param data encoded thumbnail
+     * @return hash
+     */
+    public static long hash(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(data);
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android.worker;
+
+import li.zeitgeist.android.ZeitgeistApp;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+import android.util.Log;
+
+/**
+ * In-memory index of the thumbnails stored in the disk cache.
+ *
+ * A compact open addressing hash set of (positive) item ids, built
+ * once by listing the cache directory and then kept up to date
+ * when thumbnails are saved or evicted. Presence checks never
+ * touch the filesystem.
+ */
+public class DiskCacheIndex {
+
+    /**
+     * Standard android logging tag.
+     */
+    private static final String TAG = ZeitgeistApp.TAG + ":DiskCacheIndex";
+
+    /**
+     * Suffix of files that are still being written, they are
+     * renamed once complete.
+     */
+    public static final String PARTIAL_SUFFIX = ".part";
+
+    /**
+     * Marks an empty slot in the table, ids are always positive.
+     */
+    private static final int EMPTY = 0;
+
+    /**
+     * Filename prefix of the cached thumbnails.
+     */
+    private String prefix;
+
+    /**
+     * Filename suffix of the cached thumbnails.
+     */
+    private String suffix;
+
+    /**
+     * Hash table of ids, linear probing, size is a power of two.
+     */
+    private int[] table;
+
+    /**
+     * Number of ids in the table.
+     */
+    private int size = 0;
+
+    /**
+     * Released as soon as the directory has been scanned.
+     */
+    private CountDownLatch ready = new CountDownLatch(1);
+
+    /**
+     * Constructs an empty index for files named prefix + id + suffix.
+     *
+     * @param prefix of the filenames
+     * @param suffix of the filenames
+     */
+    public DiskCacheIndex(String prefix, String suffix) {
+        this.prefix = prefix;
+        this.suffix = suffix;
+        table = new int[1024];
+    }
+
+    /**
+     * Scan the cache directory and add every thumbnail found.
+     *
+     * This is done once at startup, in a background thread. Partial
+     * files left over by a crash are deleted.
+     *
+     * @param directory of the disk cache
+     */
+    public void build(File directory) {
+        try {
+            String[] names = directory.list();
+            if (names == null) {
+                return;
+            }
+            synchronized (this) {
+                for (String name : names) {
+                    if (name.endsWith(PARTIAL_SUFFIX)) {
+                        new File(directory, name).delete();
+                        continue;
+                    }
+                    if (!name.startsWith(prefix) || !name.endsWith(suffix)) {
+                        continue;
+                    }
+                    try {
+                        add(Integer.parseInt(name.substring(prefix.length(),
+                                name.length() - suffix.length())));
+                    }
+                    catch (NumberFormatException e) {
+                        // not one of ours
+                    }
+                }
+            }
+            Log.d(TAG, "indexed " + String.valueOf(size) + " cached thumbnails");
+        }
+        finally {
+            ready.countDown();
+        }
+    }
+
+    /**
+     * Block until the initial scan has finished.
+     */
+    public void awaitReady() {
+        try {
+            ready.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * True once the initial scan has finished, never blocks.
+     *
+     * @return boolean
+     */
+    public boolean isReady() {
+        return ready.getCount() == 0;
+    }
+
+    /**
+     * True if a thumbnail of the id is in the disk cache.
+     *
+     * @param id
+     * @return boolean
+     */
+    public synchronized boolean contains(int id) {
+        int mask = table.length - 1;
+        for (int i = hash(id) & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+            if (table[i] == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add the id of a thumbnail saved to the disk cache.
+     *
+     * @param id
+     */
+    public synchronized void add(int id) {
+        if (id <= 0) {
+            return;
+        }
+        if ((size + 1) * 2 > table.length) {
+            resize(table.length * 2);
+        }
+        int mask = table.length - 1;
+        int i = hash(id) & mask;
+        while (table[i] != EMPTY) {
+            if (table[i] == id) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = id;
+        size++;
+    }
+
+    /**
+     * Remove the id of a thumbnail evicted from the disk cache.
+     *
+     * @param id
+     */
+    public synchronized void remove(int id) {
+        int mask = table.length - 1;
+        int i = hash(id) & mask;
+        while (table[i] != id) {
+            if (table[i] == EMPTY) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = EMPTY;
+        size--;
+
+        // move following entries of the probe sequence into the gap
+        for (int j = (i + 1) & mask; table[j] != EMPTY; j = (j + 1) & mask) {
+            int home = hash(table[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                table[i] = table[j];
+                table[j] = EMPTY;
+                i = j;
+            }
+        }
+    }
+
+    /**
+     * Number of indexed thumbnails.
+     *
+     * @return size
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Rehash all ids into a table of the new capacity.
+     *
+     * @param capacity power of two
+     */
+    private void resize(int capacity) {
+        int[] oldTable = table;
+        table = new int[capacity];
+        size = 0;
+        for (int id : oldTable) {
+            if (id != EMPTY) {
+                add(id);
+            }
+        }
+    }
+
+    /**
+     * Spread the (mostly sequential) ids over the table.
+     *
+     * @param id
+     * @return hash
+     */
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android.worker;
+
+/**
+ * Bisection over item ids, locates the items created around a date.
+ *
+ * Ids grow with the creation date. The id sought is above the lower
+ * bound (exclusive) and at most the upper bound. Each probe requests
+ * the page of items up to an id between the bounds, and its result
+ * moves one of the bounds at least to the probed id, even if the
+ * page is sparse or empty. So the search ends after log2(upper bound)
+ * probes at the latest.
+ */
+public class IdBisection {
+
+    /**
+     * Exclusive lower bound of the id sought.
+     */
+    private int lo = 0;
+
+    /**
+     * Inclusive upper bound of the id sought.
+     */
+    private int hi;
+
+    /**
+     * Id of the last probe.
+     */
+    private int probe;
+
+    /**
+     * Number of probes still allowed.
+     */
+    private int probesLeft;
+
+    /**
+     * Constructs the bisection.
+     *
+     * @param hi upper bound of the id sought
+     * @param maxProbes maximum number of probes
+     */
+    public IdBisection(int hi, int maxProbes) {
+        this.hi = hi;
+        probesLeft = maxProbes;
+    }
+
+    /**
+     * True if the bounds can be narrowed by another probe.
+     *
+     * @return boolean
+     */
+    public boolean hasNext() {
+        return probesLeft > 0 && hi - lo > 1;
+    }
+
+    /**
+     * Return the id to probe, the page of items up to it is requested.
+     *
+     * @return id between the bounds
+     */
+    public int next() {
+        probesLeft--;
+        probe = lo + (hi - lo) / 2;
+        return probe;
+    }
+
+    /**
+     * The items up to the probed id are not newer than the date, or
+     * there are none.
+     */
+    public void probedOlder() {
+        lo = probe;
+    }
+
+    /**
+     * The items of the probed page are all newer than the date.
+     *
+     * @param oldestId oldest id of the probed page
+     */
+    public void probedNewer(int oldestId) {
+        hi = Math.min(oldestId, probe);
+    }
+
+    /**
+     * Return the upper bound of the id sought.
+     *
+     * @return id
+     */
+    public int getHi() {
+        return hi;
+    }
+}
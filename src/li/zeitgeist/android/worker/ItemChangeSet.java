@@ -0,0 +1,254 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android.worker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Describes how the position cache changed.
+ *
+ * Positions are ordered from the newest item to the oldest. Newer
+ * items are inserted at the top, older ones appended at the bottom.
+ * Removed items and updated items (tags or title changed) are given
+ * by id. Everything else, a changed filter for instance, is a reset.
+ */
+public class ItemChangeSet {
+
+    /**
+     * Number of items inserted at the top (positions 0..n-1).
+     */
+    private final int insertedAtTop;
+
+    /**
+     * Number of items appended at the bottom.
+     */
+    private final int appendedAtBottom;
+
+    /**
+     * Ids no longer in the position cache.
+     */
+    private final List<Integer> removedIds;
+
+    /**
+     * Ids of items that were replaced by an updated version.
+     */
+    private final List<Integer> updatedIds;
+
+    /**
+     * True if the positions changed in any other way.
+     */
+    private final boolean reset;
+
+    /**
+     * True if the reset is caused by a changed filter.
+     */
+    private final boolean filterChanged;
+
+    /**
+     * Constructs the change set.
+     *
+     * @param insertedAtTop
+     * @param appendedAtBottom
+     * @param removedIds
+     * @param updatedIds
+     * @param reset
+     * @param filterChanged
+     */
+    private ItemChangeSet(int insertedAtTop, int appendedAtBottom, 
+            List<Integer> removedIds, List<Integer> updatedIds, boolean reset,
+            boolean filterChanged) {
+        this.insertedAtTop = insertedAtTop;
+        this.appendedAtBottom = appendedAtBottom;
+        this.removedIds = removedIds;
+        this.updatedIds = updatedIds;
+        this.reset = reset;
+        this.filterChanged = filterChanged;
+    }
+
+    /**
+     * Return a change set that replaces all positions.
+     *
+     * @return change set
+     */
+    public static ItemChangeSet reset() {
+        return new ItemChangeSet(0, 0, Collections.<Integer>emptyList(),
+                Collections.<Integer>emptyList(), true, false);
+    }
+
+    /**
+     * Return a change set that replaces all positions because the
+     * filter changed.
+     * 
+     * @return change set
+     */
+    public static ItemChangeSet filterChanged() {
+        return new ItemChangeSet(0, 0, Collections.<Integer>emptyList(),
+                Collections.<Integer>emptyList(), true, true);
+    }
+
+    /**
+     * Return a change set of known changes, without a reset.
+     *
+     * @param insertedAtTop
+     * @param appendedAtBottom
+     * @param removedIds
+     * @param updatedIds
+     * @return change set
+     */
+    public static ItemChangeSet changed(int insertedAtTop, int appendedAtBottom,
+            List<Integer> removedIds, List<Integer> updatedIds) {
+        return new ItemChangeSet(insertedAtTop, appendedAtBottom, removedIds, updatedIds,
+                false, false);
+    }
+
+    /**
+     * Compare two position caches.
+     *
+     * Builds sets of both, only used if the positions are rebuilt
+     * from the item cache; changes applied to the positions are
+     * described while they are applied.
+     *
+     * @param oldPositions ids before, newest first
+     * @param newPositions ids after, newest first
+     * @param updatedIds ids of replaced items (may contain ids not in
+     *   the positions)
+     * @return change set
+     */
+    public static ItemChangeSet diff(List<Integer> oldPositions, List<Integer> newPositions,
+            Collection<Integer> updatedIds) {
+        if (oldPositions.isEmpty()) {
+            return reset();
+        }
+        int newest = oldPositions.get(0);
+        int oldest = oldPositions.get(oldPositions.size() - 1);
+
+        Set<Integer> newIds = new HashSet<Integer>(newPositions);
+        List<Integer> removed = new ArrayList<Integer>();
+        for (int id : oldPositions) {
+            if (!newIds.contains(id)) {
+                removed.add(id);
+            }
+        }
+
+        Set<Integer> oldIds = new HashSet<Integer>(oldPositions);
+        int insertedAtTop = 0, appendedAtBottom = 0;
+        for (int id : newPositions) {
+            if (oldIds.contains(id)) {
+                continue;
+            }
+            if (id > newest) {
+                insertedAtTop++;
+            }
+            else if (id < oldest) {
+                appendedAtBottom++;
+            }
+            else {
+                // inserted between known items, only a filter does that
+                return reset();
+            }
+        }
+
+        List<Integer> updated = new ArrayList<Integer>();
+        for (int id : updatedIds) {
+            if (oldIds.contains(id) && newIds.contains(id)) {
+                updated.add(id);
+            }
+        }
+        return new ItemChangeSet(insertedAtTop, appendedAtBottom, removed, updated, false, false);
+    }
+
+    /**
+     * Number of items inserted at the top.
+     *
+     * @return count
+     */
+    public int getInsertedAtTop() {
+        return insertedAtTop;
+    }
+
+    /**
+     * Number of items appended at the bottom.
+     *
+     * @return count
+     */
+    public int getAppendedAtBottom() {
+        return appendedAtBottom;
+    }
+
+    /**
+     * Ids no longer in the position cache.
+     *
+     * @return ids
+     */
+    public List<Integer> getRemovedIds() {
+        return removedIds;
+    }
+
+    /**
+     * Ids of items that were replaced by an updated version.
+     *
+     * @return ids
+     */
+    public List<Integer> getUpdatedIds() {
+        return updatedIds;
+    }
+
+    /**
+     * True if the positions changed in any other way, the receiver
+     * should rebind everything.
+     *
+     * @return boolean
+     */
+    public boolean isReset() {
+        return reset;
+    }
+
+    /**
+     * True if the positions were replaced because the filter changed,
+     * the receiver may restore the position it had in that filter.
+     * 
+     * @return boolean
+     */
+    public boolean isFilterChanged() {
+        return filterChanged;
+    }
+
+    /**
+     * True if nothing changed at all.
+     *
+     * @return boolean
+     */
+    public boolean isEmpty() {
+        return !reset && insertedAtTop == 0 && appendedAtBottom == 0 && 
+                removedIds.isEmpty() && updatedIds.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        if (reset) {
+            return filterChanged ? "filter changed" : "reset";
+        }
+        return String.format("+%d top, +%d bottom, -%d removed, %d updated",
+                insertedAtTop, appendedAtBottom, removedIds.size(), updatedIds.size());
+    }
+}
@@ -24,6 +24,7 @@ import li.zeitgeist.api.*;
 import li.zeitgeist.api.Item.Type;
 import li.zeitgeist.api.error.ZeitgeistError;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -52,13 +53,30 @@ import android.util.Log;
  * @author apoc
  * @see GalleryAdapter
  */
-public class ItemWorker extends Thread {
+public class ItemWorker extends Thread implements MemoryTrimmer {
 
     /**
      * Standard android logging tag.
      */
     public static final String TAG = ZeitgeistApp.TAG + ":ItemWorker";
 
+    /**
+     * Items kept beyond the last requested position when the
+     * device runs critically low on memory.
+     */
+    private static final int TRIM_KEEP_RUNNING = 500;
+
+    /**
+     * Items kept beyond the last requested position in the background.
+     */
+    private static final int TRIM_KEEP_BACKGROUND = 200;
+
+    /**
+     * Items kept beyond the last requested position when the
+     * process is about to be killed.
+     */
+    private static final int TRIM_KEEP_MODERATE = 50;
+
     /**
      * Interface for updated item listeners.
      * 
@@ -70,6 +88,16 @@ public class ItemWorker extends Thread {
         public void onError(final String error);
     }
     
+    /**
+     * Interface for listeners of incremental position changes.
+     * 
+     * Called (in the worker thread) every time the position cache
+     * is rebuilt, with what changed compared to the previous one.
+     */
+    public interface ChangedItemsListener {
+        public void onChangedItems(ItemChangeSet changes);
+    }
+    
     /**
      * Interface to listen for updated tags.
      * 
@@ -95,22 +123,83 @@ public class ItemWorker extends Thread {
         public void onItemUpvote(final int id);
         public void onError(final String error);
     }
+    
+    /**
+     * Interface to listen for the result of a seek.
+     * 
+     * The position is the one of the item sought in the new
+     * position cache, or -1 if nothing was found.
+     */
+    public interface SeekListener {
+        public void onSeek(final int position);
+        public void onError(final String error);
+    }
+
+    /**
+     * Maximum number of pages requested to locate a seek target.
+     */
+    private static final int MAX_SEEK_PROBES = 24;
+
+    /**
+     * Number of filters whose scroll anchor is remembered.
+     */
+    private static final int MAX_SCROLL_ANCHORS = 16;
+
+    /**
+     * Type filter bit for hidden images.
+     * @see #getTypeFilter(boolean, boolean)
+     */
+    private static final int TYPE_FILTER_HIDE_IMAGES = 1;
+
+    /**
+     * Type filter bit for hidden videos.
+     */
+    private static final int TYPE_FILTER_HIDE_VIDEOS = 2;
+
+    /**
+     * Number of type filter combinations.
+     */
+    private static final int TYPE_FILTERS = 4;
 
     /**
      * List of updated items listener to inform.
      */
     private List<UpdatedItemsListener> updatedListeners;
 
+    /**
+     * List of listeners for the position changes.
+     */
+    private List<ChangedItemsListener> changedListeners;
+
     /**
      * Cached position, each time this is changed the adapter
      * needs to be notified about it via the updatedListeners.
      */
-    private List<Integer> positionCache;
+    private volatile List<Integer> positionCache;
+
+    /**
+     * Position caches of every type filter combination (for the
+     * current tag), indexed by type filter.
+     * 
+     * Maintained together, so changing the type filter just swaps
+     * the positionCache. Only replaced within the worker thread,
+     * swapping them and the type filter is synchronized on it.
+     */
+    private Vector<PositionList> typePositionCaches;
     
     /**
      * Cached item objects by Id.
      */
     private SortedMap<Integer, Item> itemCache;
+
+    /**
+     * Tiny encoded placeholder previews of the thumbnails by Id.
+     * 
+     * Computed by the ThumbnailWorker once a thumbnail is loaded,
+     * stored with the itemCache so they are available right after
+     * a cold start.
+     */
+    private HashMap<Integer, byte[]> placeholderCache;
     
     /**
      * Locked Item Query, last query returned 0 items.
@@ -133,7 +222,7 @@ public class ItemWorker extends Thread {
      * Other items are kept in the itemCache but are excluded
      * from the positionCache.
      */
-    private boolean hideVideos = true;
+    private volatile boolean hideVideos = true;
     
     /**
      * Hide items of type image from the position cache.
@@ -141,12 +230,62 @@ public class ItemWorker extends Thread {
      * Other items are kept in the itemCache but are excluded
      * from the positionCache.
      */
-    private boolean hideImages = false;
+    private volatile boolean hideImages = false;
     
     /**
      * Only show items with this tag.
      */
-    private String showTagName = null;
+    private volatile String showTagName = null;
+
+    /**
+     * Newest item id of the position cache after a seek, -1 if the
+     * positions start with the newest items.
+     * 
+     * Newer items may still be cached but are not contiguous with
+     * the range loaded by the seek, they are excluded until the
+     * range has been extended up to them.
+     */
+    private volatile int rangeTop = -1;
+
+    /**
+     * Oldest item id of the position cache after a seek, -1 if the
+     * positions include the oldest cached items.
+     * 
+     * Older items stay cached but are hidden like the newer ones,
+     * the floor is lowered as older pages are queried.
+     */
+    private volatile int rangeBottom = -1;
+
+    /**
+     * Number of ids covered by a page, estimated by the last seek.
+     */
+    private int rangeSpan = 1;
+
+    /**
+     * Newest item id seen on the server.
+     */
+    private int newestId = -1;
+    
+    /**
+     * Scroll anchor (item id, distance from the top) of the recently
+     * used filters, least recently used first.
+     * 
+     * Persisted with the item cache.
+     * @see #getFilterKey()
+     */
+    private LinkedHashMap<String, int[]> scrollAnchors = 
+            new LinkedHashMap<String, int[]>(MAX_SCROLL_ANCHORS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+            return size() > MAX_SCROLL_ANCHORS;
+        }
+    };
+
+    /**
+     * Last scroll anchor reported by the gallery, saved for the
+     * current filter before it changes. Guarded by scrollAnchors.
+     */
+    private int[] currentAnchor = null;
     
     /**
      * The handler for this thread, used to queue the item downloading on.
@@ -168,6 +307,16 @@ public class ItemWorker extends Thread {
      */
     private Context context;
 
+    /**
+     * Last position requested by the adapter.
+     */
+    private volatile int lastPosition = 0;
+
+    /**
+     * Items released under memory pressure.
+     */
+    private TrimMetrics trimMetrics = new TrimMetrics("items", "items");
+
     /**
      * Constructs and starts worker for downloading and create item instances.
      * @param context of the gallery service.
@@ -178,25 +327,35 @@ public class ItemWorker extends Thread {
         
         // initialize caches, in-memory only atm.
         itemCache = new TreeMap<Integer, Item>();
-        positionCache = new Vector<Integer>();
+        placeholderCache = new HashMap<Integer, byte[]>();
+        positionCache = PositionList.of(Collections.<Integer>emptyList());
 
         // list of objects that implement the listener interface
         updatedListeners = new Vector<UpdatedItemsListener>();
-
-        // start itself
-        if (!isAlive()) {
-            start();
+        changedListeners = new Vector<ChangedItemsListener>();
+        typePositionCaches = new Vector<PositionList>();
+        for (int typeFilter = 0; typeFilter < TYPE_FILTERS; typeFilter++) {
+            typePositionCaches.add(PositionList.of(Collections.<Integer>emptyList()));
         }
-        
+
         // get File object pointing to the disk cache of the itemCache
         File externalStorageDirectory = context.getExternalFilesDir(null);
         itemDiskCache = new File(externalStorageDirectory, "item_cache.bin");
         Log.d(TAG, "item disk cache: " + itemDiskCache.getAbsolutePath());
-        
-        // load existing cache:
-        loadItemDiskCache(); 
+
+        // start itself, the existing cache is loaded in the thread
+        if (!isAlive()) {
+            start();
+        }
     }
 
+    /**
+     * Load the items, placeholders and scroll anchors stored by
+     * saveItemDiskCache.
+     * 
+     * Runs in the worker thread before the first query, the loaded
+     * positions are reported to the changed items listeners.
+     */
     private void loadItemDiskCache() {
         if (itemDiskCache.exists()) {
             Log.v(TAG, "load item cache from disk");
@@ -204,10 +363,29 @@ public class ItemWorker extends Thread {
                 FileInputStream fis = new FileInputStream(itemDiskCache);
                 ObjectInputStream is = new ObjectInputStream(fis);
                 
-                itemCache = (TreeMap<Integer, Item>) is.readObject();
-                
-                // update/rebuild position cache
-                createPositionCache();
+                itemCache.putAll((TreeMap<Integer, Item>) is.readObject());
+
+                // older caches end here
+                try {
+                    HashMap<Integer, byte[]> placeholders = 
+                            (HashMap<Integer, byte[]>) is.readObject();
+                    synchronized (placeholderCache) {
+                        placeholderCache.putAll(placeholders);
+                    }
+                    HashMap<String, int[]> anchors = 
+                            (HashMap<String, int[]>) is.readObject();
+                    synchronized (scrollAnchors) {
+                        scrollAnchors.putAll(anchors);
+                    }
+                }
+                catch (EOFException e) {
+                    Log.v(TAG, "item cache without placeholders or scroll anchors");
+                }
+                is.close();
+
+                // the scroll anchors are loaded, the gallery restores
+                // its position when it receives the positions
+                setPositionCaches(createPositionCaches(), ItemChangeSet.reset(), null);
                 
             } catch (FileNotFoundException e) {
                 // TODO Auto-generated catch block
@@ -231,6 +409,15 @@ public class ItemWorker extends Thread {
                 fos = new FileOutputStream(itemDiskCache);
                 os = new ObjectOutputStream(fos);
                 os.writeObject(itemCache);
+                synchronized (placeholderCache) {
+                    os.writeObject(placeholderCache);
+                }
+                synchronized (scrollAnchors) {
+                    saveScrollAnchor();
+                    // a plain copy, in the order of use
+                    os.writeObject(new LinkedHashMap<String, int[]>(scrollAnchors));
+                }
+                os.close();
             }
         } catch (FileNotFoundException e) {
             // TODO Auto-generated catch block
@@ -241,6 +428,92 @@ public class ItemWorker extends Thread {
         }
     }
 
+    /**
+     * Report the scroll position of the gallery in the current
+     * filter.
+     * 
+     * It is saved for the filter when the filter changes (or the
+     * item cache is saved).
+     * 
+     * @param id of the item at the top of the grid
+     * @param top distance of that item from the top
+     */
+    public void setScrollAnchor(int id, int top) {
+        synchronized (scrollAnchors) {
+            currentAnchor = new int[] {id, top};
+        }
+    }
+
+    /**
+     * Save the last reported scroll position for the current filter.
+     */
+    private void saveScrollAnchor() {
+        synchronized (scrollAnchors) {
+            if (currentAnchor != null) {
+                scrollAnchors.put(getFilterKey(), currentAnchor);
+                currentAnchor = null;
+            }
+        }
+    }
+
+    /**
+     * Return the scroll position of the gallery in the current
+     * filter, also of previous sessions.
+     * 
+     * @return item id and distance from the top, or null
+     */
+    public int[] getScrollAnchor() {
+        synchronized (scrollAnchors) {
+            return scrollAnchors.get(getFilterKey());
+        }
+    }
+
+    /**
+     * Return a key identifying the current filter settings.
+     * 
+     * @return key
+     */
+    private String getFilterKey() {
+        return (hideImages ? "-images" : "") + (hideVideos ? "-videos" : "") +
+                (showTagName != null ? "#" + showTagName : "");
+    }
+
+    /**
+     * Return the placeholder preview of an item.
+     * 
+     * @param id
+     * @return encoded placeholder or null
+     */
+    public byte[] getPlaceholder(int id) {
+        synchronized (placeholderCache) {
+            return placeholderCache.get(id);
+        }
+    }
+
+    /**
+     * True if the item has a placeholder preview.
+     * 
+     * @param id
+     * @return boolean
+     */
+    public boolean hasPlaceholder(int id) {
+        synchronized (placeholderCache) {
+            return placeholderCache.containsKey(id);
+        }
+    }
+
+    /**
+     * Store the placeholder preview of an item.
+     * 
+     * @param id
+     * @param placeholder encoded placeholder
+     */
+    public void setPlaceholder(int id, byte[] placeholder) {
+        synchronized (placeholderCache) {
+            placeholderCache.put(id, placeholder);
+        }
+    }
+
     /**
      * Add instance to the listeners for updated items.
      * 
@@ -250,6 +523,15 @@ public class ItemWorker extends Thread {
     	updatedListeners.add(listener);
     }
 
+    /**
+     * Add instance to the listeners for position changes.
+     * 
+     * @param listener
+     */
+    public void addChangedItemsListener(ChangedItemsListener listener) {
+        changedListeners.add(listener);
+    }
+
     /**
      * Query the positionCache for an Id, then return the item instance.
      * 
@@ -258,8 +540,27 @@ public class ItemWorker extends Thread {
      * @see GalleryAdapter
      */
     public Item getItemByPosition(int position) {
-        int id = positionCache.get(position);
-        return itemCache.get(id);
+        List<Integer> positions = positionCache;
+        if (position < 0 || position >= positions.size()) {
+            return null; // the grid is not yet informed about a change
+        }
+        lastPosition = position;
+        return itemCache.get(positions.get(position));
+    }
+    
+    /**
+     * Return the item at the position without marking the position
+     * as requested (see trimMemory), for lookahead.
+     * 
+     * @param position
+     * @return item instance or null
+     */
+    public Item peekItemByPosition(int position) {
+        List<Integer> positions = positionCache;
+        if (position < 0 || position >= positions.size()) {
+            return null;
+        }
+        return itemCache.get(positions.get(position));
     }
     
     /**
@@ -294,7 +595,10 @@ public class ItemWorker extends Thread {
     public void queryOlderItems() {
         int firstId = -1;
         
-        if (itemCache.size() >= 0) {
+        if (rangeBottom != -1) {
+            firstId = rangeBottom; // continue below the range of a seek
+        }
+        else if (itemCache.size() >= 0) {
             firstId = itemCache.firstKey();
         }
         
@@ -310,9 +614,273 @@ public class ItemWorker extends Thread {
         if (itemCache.size() >= 0) {
             lastId = itemCache.lastKey();
         }
-        
+
+        // leaves the range of a seek, see queryItems
         queryItems(lastId, -1);       
     }
+
+    /**
+     * Seek to an item id.
+     * 
+     * If the item is not in the position cache the page starting at
+     * the id is requested and replaces the shown range: older and
+     * newer cached items are hidden until the range is extended
+     * (see queryOlderItems and queryNewerRange). The listener is
+     * called within the itemWorker thread.
+     * 
+     * @param id of the item (or the next older one)
+     * @param listener to call
+     */
+    public void seekToId(final int id, final SeekListener listener) {
+        if (!isAlive() || handler == null) {
+            return;
+        }
+
+        Log.v(TAG, String.format("seek to id #%d", id));
+        loading = true;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int position = getSeekPosition(id);
+                    if (position == -1) {
+                        List<Item> window = listBefore(id + 1);
+                        loadSeekWindow(window);
+                        position = getSeekPosition(id);
+                    }
+                    listener.onSeek(position);
+                } catch (ZeitgeistError e) {
+                    Log.e(TAG, "Zeitgeist Error: " + e.getError());
+                    listener.onError(e.getError());
+                } finally {
+                    loading = false;
+                }
+            }});
+    }
+
+    /**
+     * Seek to the items created at a date.
+     * 
+     * The page is located by bisection over the id space, probing
+     * with before queries. Ids increase with the creation date.
+     * 
+     * @param date to seek to
+     * @param listener to call
+     * @see #seekToId(int, SeekListener)
+     */
+    public void seekToDate(final Date date, final SeekListener listener) {
+        if (!isAlive() || handler == null) {
+            return;
+        }
+
+        Log.v(TAG, "seek to date " + date.toString());
+        loading = true;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    List<Item> window = findWindowByDate(date);
+                    int id = -1;
+                    for (Item item : window) {
+                        id = item.getId();
+                        if (!item.getCreatedAt().after(date)) {
+                            break;
+                        }
+                    }
+                    int position = getSeekPosition(id);
+                    if (position == -1 && id != -1) {
+                        loadSeekWindow(window);
+                        position = getSeekPosition(id);
+                    }
+                    listener.onSeek(position);
+                } catch (ZeitgeistError e) {
+                    Log.e(TAG, "Zeitgeist Error: " + e.getError());
+                    listener.onError(e.getError());
+                } finally {
+                    loading = false;
+                }
+            }});
+    }
+
+    /**
+     * Locate the page of items created around the date.
+     * 
+     * @param date
+     * @return page of items, newest first
+     * @throws ZeitgeistError
+     */
+    private List<Item> findWindowByDate(Date date) throws ZeitgeistError {
+        List<Item> page = listBefore(-1);
+        if (page.isEmpty()) {
+            return page;
+        }
+        newestId = Math.max(newestId, page.get(0).getId());
+        if (!page.get(page.size() - 1).getCreatedAt().after(date)) {
+            return page; // on the first page
+        }
+
+        // the item sought is older than the first page
+        IdBisection bisection = new IdBisection(
+                page.get(page.size() - 1).getId(), MAX_SEEK_PROBES);
+        while (bisection.hasNext()) {
+            page = listBefore(bisection.next() + 1);
+            if (page.isEmpty() || !page.get(0).getCreatedAt().after(date)) {
+                bisection.probedOlder();
+            }
+            else if (page.get(page.size() - 1).getCreatedAt().after(date)) {
+                bisection.probedNewer(page.get(page.size() - 1).getId());
+            }
+            else {
+                return page; // the page contains the date
+            }
+        }
+        return listBefore(bisection.getHi() + 1);
+    }
+
+    /**
+     * Replace the shown range with the page found by a seek.
+     * 
+     * @param window page of items, newest first
+     */
+    private void loadSeekWindow(List<Item> window) {
+        if (window.isEmpty()) {
+            return;
+        }
+        int newest = getNewestId();
+        int top = window.get(0).getId();
+        int bottom = window.get(window.size() - 1).getId();
+        for (Item item : window) {
+            itemCache.put(item.getId(), item);
+        }
+
+        // older items are not contiguous with the window, they are
+        // hidden until the range is extended down to them
+        rangeTop = top >= newest ? -1 : top;
+        rangeBottom = itemCache.headMap(bottom).isEmpty() ? -1 : bottom;
+        rangeSpan = Math.max(1, top - bottom + 1);
+        Log.d(TAG, String.format("seek window %d..%d", bottom, top));
+
+        resetLockedQuery();
+        setPositionCaches(createPositionCaches(), ItemChangeSet.reset(), null);
+        callUpdatedItems(window);
+    }
+
+    /**
+     * Return the position of the newest item not newer than the id.
+     * 
+     * @param id
+     * @return position or -1 if the id is not within the positions
+     */
+    private int getSeekPosition(int id) {
+        List<Integer> positions = positionCache;
+        if (positions.isEmpty() || id > positions.get(0) || 
+                id < positions.get(positions.size() - 1)) {
+            return -1;
+        }
+        for (int position = 0; position < positions.size(); position++) {
+            if (positions.get(position) <= id) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * True if the positions are a range loaded by a seek, that does
+     * not reach the newest items.
+     * 
+     * @return boolean
+     */
+    public boolean isSeekRange() {
+        return rangeTop != -1;
+    }
+
+    /**
+     * Extend the range loaded by a seek by the page of newer items
+     * adjacent to it.
+     * 
+     * The page is located by probing with before queries, the span
+     * of ids is widened if no newer items are found and narrowed if
+     * the page is not adjacent.
+     */
+    public void queryNewerRange() {
+        if (!isAlive() || handler == null || rangeTop == -1) {
+            return;
+        }
+
+        loading = true;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int newest = getNewestId();
+                    int top = rangeTop;
+                    int span = rangeSpan;
+                    for (int probes = 0; probes < MAX_SEEK_PROBES && top != -1; probes++) {
+                        List<Item> page = listBefore(top + span + 1);
+                        if (page.isEmpty() || page.get(0).getId() <= top) {
+                            if (top + span >= newest) {
+                                top = -1; // nothing newer, the range is complete
+                                break;
+                            }
+                            span *= 2;
+                        }
+                        else if (page.get(page.size() - 1).getId() > top) {
+                            span = Math.max(1, span / 2);
+                        }
+                        else {
+                            for (Item item : page) {
+                                itemCache.put(item.getId(), item);
+                            }
+                            top = page.get(0).getId();
+                            if (top >= newest) {
+                                top = -1;
+                            }
+                            break;
+                        }
+                    }
+                    rangeTop = top;
+                    rangeSpan = span;
+                    updatePositionCache(Collections.<Integer>emptyList());
+                    callUpdatedItems(null);
+                } catch (ZeitgeistError e) {
+                    Log.e(TAG, "Zeitgeist Error: " + e.getError());
+                    for (UpdatedItemsListener listener : updatedListeners) {
+                        listener.onError(e.getError());
+                    }
+                } finally {
+                    loading = false;
+                }
+            }});
+    }
+
+    /**
+     * Return the newest item id known.
+     * 
+     * @return id or -1
+     */
+    public int getNewestId() {
+        if (!itemCache.isEmpty()) {
+            return Math.max(newestId, itemCache.lastKey());
+        }
+        return newestId;
+    }
+
+    /**
+     * Request the page of items older than the id, honoring the tag
+     * filter.
+     * 
+     * @param before exclusive, or -1 for the newest items
+     * @return items, newest first
+     * @throws ZeitgeistError
+     */
+    private List<Item> listBefore(int before) throws ZeitgeistError {
+        if (showTagName != null) {
+            return before == -1 ? api.listByTag(showTagName) : 
+                api.listByTagBefore(showTagName, before);
+        }
+        return before == -1 ? api.list() : api.listBefore(before);
+    }
     
 
     /**
@@ -344,6 +912,10 @@ public class ItemWorker extends Thread {
                     // update in cache
                     if (itemCache.containsKey(id)) {
                         itemCache.put(id, item);
+
+                        // the tags may hide or show it for the tag filter
+                        updatePositionCache(Collections.singletonList(item), 
+                                Collections.<Integer>emptyList(), Collections.singletonList(id));
                     }
                     
                     listener.onUpdatedItemTags(item);
@@ -385,7 +957,10 @@ public class ItemWorker extends Thread {
             public void run() {
                 try {
                     api.delete(id);
-                    itemCache.remove(id);
+                    if (itemCache.remove(id) != null) {
+                        updatePositionCache(Collections.<Item>emptyList(), 
+                                Collections.singletonList(id), Collections.<Integer>emptyList());
+                    }
                     listener.onItemDelete(id);
                 } catch (ZeitgeistError e) {
                     Log.e(TAG, "Zeitgeist Error: " + e.getError());
@@ -486,13 +1061,34 @@ public class ItemWorker extends Thread {
                         lockedQuery = true;
                     }
 
+                    // newer items return to the newest ones after a seek,
+                    // the cached items above the range are shown again
+                    boolean rangeCleared = false;
+                    if (after > -1 && rangeTop != -1) {
+                        rangeTop = -1;
+                        rangeCleared = true;
+                    }
+
+                    // extend the range of a seek down to the older page
+                    boolean rangeExtended = false;
+                    if (before > -1 && before == rangeBottom && newItemsList.size() > 0) {
+                        int oldest = newItemsList.get(newItemsList.size() - 1).getId();
+                        rangeBottom = itemCache.headMap(oldest).isEmpty() ? -1 : oldest;
+                        rangeExtended = true;
+                    }
+
                     
                     // map the list to an hash with ID as key:
+                    List<Integer> updatedIds = new ArrayList<Integer>();
                     for (Item item : newItemsList) {
-                        itemCache.put(item.getId(), item);
+                        Item previous = itemCache.put(item.getId(), item);
+                        if (previous != null && isChanged(previous, item)) {
+                            updatedIds.add(item.getId());
+                        }
                     }
 
                     // remove items that have since been deleted
+                    List<Integer> removedIds = new ArrayList<Integer>();
                     if (newItemsList.size() > 0) {
                         int lastId = newItemsList.get(0).getId();
                         int firstId = newItemsList.get(newItemsList.size()-1).getId();
@@ -511,6 +1107,7 @@ public class ItemWorker extends Thread {
                                     // remove from itemCache
                                     Log.v(TAG, "item found that since been deleted: " + String.valueOf(id));
                                     itemCache.remove(id);
+                                    removedIds.add(id);
                                 }
                             }
                         }
@@ -529,8 +1126,24 @@ public class ItemWorker extends Thread {
                     Log.d(TAG, "put " + String.valueOf(itemCache.size()) + 
                             " items in cache.");
 
-                    // update/rebuild position cache
-                    createPositionCache();
+                    // update position caches with the new items, hidden
+                    // items below the range may have been uncovered
+                    if (rangeCleared) {
+                        // rebuilt, the items between the range and the
+                        // page are not part of the page
+                        updatePositionCache(updatedIds);
+                    }
+                    else {
+                        Collection<Item> added = newItemsList;
+                        if (rangeExtended) {
+                            SortedMap<Integer, Item> uncovered = itemCache.headMap(before);
+                            if (rangeBottom != -1) {
+                                uncovered = uncovered.tailMap(rangeBottom);
+                            }
+                            added = new ArrayList<Item>(uncovered.values());
+                        }
+                        updatePositionCache(added, removedIds, updatedIds);
+                    }
 
                     // inform the listeners that the something has changed
                     callUpdatedItems(newItemsList);
@@ -576,41 +1189,326 @@ public class ItemWorker extends Thread {
     }
 
     /**
-     * Create sorted position cache with item IDs.
+     * Release memory according to the trim level.
+     * 
+     * Evicts the items that are far away from the last requested
+     * position, older ones only so the positions of the remaining
+     * items don't change. They are queried again when the user
+     * scrolls that far.
+     * 
+     * @param level one of the TRIM_MEMORY_* levels
+     */
+    public void trimMemory(final int level) {
+        final int keep;
+        if (level >= TRIM_MEMORY_MODERATE) {
+            keep = TRIM_KEEP_MODERATE;
+        }
+        else if (level >= TRIM_MEMORY_BACKGROUND) {
+            keep = TRIM_KEEP_BACKGROUND;
+        }
+        else if (level >= TRIM_MEMORY_RUNNING_CRITICAL && level < TRIM_MEMORY_UI_HIDDEN) {
+            keep = TRIM_KEEP_RUNNING;
+        }
+        else {
+            return;
+        }
+        if (!isAlive() || handler == null) {
+            return;
+        }
+
+        // in the worker thread, the item cache is only changed there
+        handler.post(new Runnable() {
+            public void run() {
+                int cutoff = lastPosition + keep;
+                if (cutoff >= positionCache.size()) {
+                    trimMetrics.recordTrim(level, 0);
+                    return;
+                }
+                SortedMap<Integer, Item> older = itemCache.headMap(positionCache.get(cutoff));
+                int released = older.size();
+                synchronized (placeholderCache) {
+                    placeholderCache.keySet().removeAll(older.keySet());
+                }
+                older.clear();
+                rangeBottom = -1; // nothing older is left to hide
+
+                // older items can be queried again
+                resetLockedQuery();
+                updatePositionCache(Collections.<Integer>emptyList());
+                trimMetrics.recordTrim(level, released);
+                Log.d(TAG, trimMetrics.toString());
+                callUpdatedItems(null);
+            }
+        });
+    }
+
+    /**
+     * Create sorted position caches with item IDs.
      * 
      * The position cache is used by the gridview adapter for
      * position(list index) -> item ID mapping. Thats also the
      * place where images or videos are ignored and filtered
-     * for the selected tag.
+     * for the selected tag. Iterates the item cache, so only
+     * called within the worker thread.
+     * 
+     * @return position caches indexed by type filter
      */
-    private void createPositionCache() {
-        List<Integer> newPositionCache = new Vector<Integer>();
+    private List<PositionList> createPositionCaches() {
+        List<List<Integer>> ids = new ArrayList<List<Integer>>();
+        for (int typeFilter = 0; typeFilter < TYPE_FILTERS; typeFilter++) {
+            ids.add(new ArrayList<Integer>());
+        }
+        
+        // only the range loaded by a seek
+        SortedMap<Integer, Item> range = itemCache;
+        if (rangeTop != -1) {
+            range = range.headMap(rangeTop + 1);
+        }
+        if (rangeBottom != -1) {
+            range = range.tailMap(rangeBottom);
+        }
         
-        Iterator<Entry<Integer, Item>> iter = itemCache.entrySet().iterator();
+        Iterator<Entry<Integer, Item>> iter = range.entrySet().iterator();
         while(iter.hasNext()) {
             Item item = iter.next().getValue();
-            
-            // filtering by type
-            Type type = item.getType();
-            if ( (type == Type.AUDIO) ||
-                 (type == Type.VIDEO && hideVideos) ||    
-                 (type == Type.IMAGE && hideImages) ) {
-                continue;
+            for (int typeFilter = 0; typeFilter < TYPE_FILTERS; typeFilter++) {
+                if (isShown(item, typeFilter)) {
+                    ids.get(typeFilter).add(item.getId());
+                }
+            }
+        }
+        List<PositionList> newPositionCaches = new ArrayList<PositionList>();
+        for (List<Integer> filterIds : ids) {
+            Collections.reverse(filterIds);
+            newPositionCaches.add(PositionList.of(filterIds));
+        }
+        return newPositionCaches;
+    }
+
+    /**
+     * Swap in the position caches of all type filters and inform
+     * the listeners about the changed positions.
+     * 
+     * Synchronized with the type filter setters, so the positions
+     * compared are always of the same filter. The listeners are
+     * informed after the lock is released.
+     * 
+     * @param newPositionCaches indexed by type filter
+     * @param changes to report, null to report the difference
+     * @param updatedIds ids of items replaced by a changed version
+     */
+    private void setPositionCaches(List<PositionList> newPositionCaches, 
+            ItemChangeSet changes, Collection<Integer> updatedIds) {
+        synchronized (typePositionCaches) {
+            List<Integer> oldPositionCache = positionCache;
+            for (int typeFilter = 0; typeFilter < TYPE_FILTERS; typeFilter++) {
+                typePositionCaches.set(typeFilter, newPositionCaches.get(typeFilter));
             }
-            
-            // filtering by tag
-            if (showTagName != null &&
-                !item.hasTag(showTagName)) {
-                continue;
+            positionCache = typePositionCaches.get(getTypeFilter(hideImages, hideVideos));
+            Log.v(TAG, "new position cache has entries: " + String.valueOf(positionCache.size()));
+            if (changes == null) {
+                changes = ItemChangeSet.diff(oldPositionCache, positionCache, updatedIds);
             }
+        }
+        callChangedItems(changes);
+    }
 
-            newPositionCache.add(item.getId());
+    /**
+     * Update the position caches of all type filters with added and
+     * removed items, without iterating the item cache.
+     * 
+     * Pages of newer or older items are prepended or appended to the
+     * position caches without copying them (see PositionList). The
+     * change set of the shown filter is collected while the ids are
+     * applied, the positions are not compared. The listeners are
+     * informed after the lock is released.
+     * 
+     * @param added items, new or replaced
+     * @param removedIds ids of removed items
+     * @param updatedIds ids of items replaced by a changed version
+     */
+    private void updatePositionCache(Collection<Item> added, Collection<Integer> removedIds,
+            Collection<Integer> updatedIds) {
+        ItemChangeSet changes = null;
+        synchronized (typePositionCaches) {
+            int shownFilter = getTypeFilter(hideImages, hideVideos);
+            for (int typeFilter = 0; typeFilter < TYPE_FILTERS; typeFilter++) {
+                ItemChangeSet filterChanges = 
+                        applyChanges(typeFilter, added, removedIds, updatedIds);
+                if (typeFilter == shownFilter) {
+                    changes = filterChanges;
+                }
+            }
+            positionCache = typePositionCaches.get(shownFilter);
         }
-        Collections.reverse(newPositionCache);
-        Log.v(TAG, "new position cache has entries: " + String.valueOf(newPositionCache.size()));
-        positionCache = newPositionCache;
+        callChangedItems(changes);
+    }
+
+    /**
+     * Apply added and removed items to the position cache of a type
+     * filter, called with the typePositionCaches lock held.
+     * 
+     * Items newer or older than all positions are prepended or
+     * appended. Removed items and items between known ones (only a
+     * changed tag does that) copy the positions.
+     * 
+     * @param typeFilter of the position cache
+     * @param added items, new or replaced
+     * @param removedIds ids of removed items
+     * @param updatedIds ids of items replaced by a changed version
+     * @return the changes
+     */
+    private ItemChangeSet applyChanges(int typeFilter, Collection<Item> added, 
+            Collection<Integer> removedIds, Collection<Integer> updatedIds) {
+        PositionList positions = typePositionCaches.get(typeFilter);
+        boolean reset = positions.isEmpty();
+        int newest = reset ? 0 : positions.get(0);
+        int oldest = reset ? 0 : positions.get(positions.size() - 1);
+        List<Integer> top = new ArrayList<Integer>();
+        List<Integer> bottom = new ArrayList<Integer>();
+        List<Integer> between = new ArrayList<Integer>();
+        List<Integer> removed = new ArrayList<Integer>();
+        List<Integer> updated = new ArrayList<Integer>();
+
+        for (int id : removedIds) {
+            if (positions.contains(id)) {
+                removed.add(id);
+            }
+        }
+        for (Item item : added) {
+            int id = item.getId();
+            boolean known = positions.contains(id);
+            boolean shown = isShown(item, typeFilter);
+            if (known && !shown) {
+                removed.add(id);
+            }
+            else if (known) {
+                if (updatedIds.contains(id)) {
+                    updated.add(id);
+                }
+            }
+            else if (shown) {
+                if (reset || id > newest) {
+                    top.add(id);
+                }
+                else if (id < oldest) {
+                    bottom.add(id);
+                }
+                else {
+                    between.add(id);
+                }
+            }
+        }
+
+        Comparator<Integer> newestFirst = Collections.reverseOrder();
+        Collections.sort(top, newestFirst);
+        Collections.sort(bottom, newestFirst);
+        if (removed.isEmpty() && between.isEmpty()) {
+            positions = positions.prepend(top).append(bottom);
+        }
+        else {
+            List<Integer> ids = new ArrayList<Integer>(top);
+            ids.addAll(positions);
+            for (int id : removed) {
+                int index = Collections.binarySearch(ids, id, newestFirst);
+                if (index >= 0) {
+                    ids.remove(index);
+                }
+            }
+            for (int id : between) {
+                int index = Collections.binarySearch(ids, id, newestFirst);
+                if (index < 0) {
+                    ids.add(-index - 1, id);
+                }
+            }
+            ids.addAll(bottom);
+            positions = PositionList.of(ids);
+        }
+        typePositionCaches.set(typeFilter, positions);
+
+        if (reset || !between.isEmpty()) {
+            // inserted between known items, only a filter does that
+            return ItemChangeSet.reset();
+        }
+        return ItemChangeSet.changed(top.size(), bottom.size(), removed, updated);
+    }
+
+    /**
+     * True if the item is shown with the type filter (and the
+     * current tag and seek range).
+     * 
+     * @param item
+     * @param typeFilter
+     * @return boolean
+     */
+    private boolean isShown(Item item, int typeFilter) {
+        // filtering by type
+        Type type = item.getType();
+        if ( (type == Type.AUDIO) ||
+             (type == Type.VIDEO && (typeFilter & TYPE_FILTER_HIDE_VIDEOS) != 0) ||    
+             (type == Type.IMAGE && (typeFilter & TYPE_FILTER_HIDE_IMAGES) != 0) ) {
+            return false;
+        }
+        
+        // filtering by tag
+        if (showTagName != null &&
+            !item.hasTag(showTagName)) {
+            return false;
+        }
+
+        // only the range loaded by a seek
+        return (rangeTop == -1 || item.getId() <= rangeTop) &&
+                (rangeBottom == -1 || item.getId() >= rangeBottom);
+    }
+
+    /**
+     * Return the type filter index of the filter settings.
+     * 
+     * @param hideImages
+     * @param hideVideos
+     * @return index of the typePositionCaches
+     */
+    private static int getTypeFilter(boolean hideImages, boolean hideVideos) {
+        return (hideImages ? TYPE_FILTER_HIDE_IMAGES : 0) | 
+                (hideVideos ? TYPE_FILTER_HIDE_VIDEOS : 0);
     }
     
+    /**
+     * Rebuild the position cache and inform the listeners about
+     * the positions that changed.
+     * 
+     * @param updatedIds ids of items replaced by a changed version
+     */
+    private void updatePositionCache(Collection<Integer> updatedIds) {
+        setPositionCaches(createPositionCaches(), null, updatedIds);
+    }
+
+    /**
+     * True if the item differs from its previous version in anything
+     * the user can see.
+     * 
+     * @param previous
+     * @param item
+     * @return boolean
+     */
+    private static boolean isChanged(Item previous, Item item) {
+        String title = previous.getTitle();
+        return !(title == null ? item.getTitle() == null : title.equals(item.getTitle())) ||
+                !Arrays.equals(previous.getTagNames(), item.getTagNames());
+    }
+
+    /**
+     * Informs the listeners about the changed positions.
+     * 
+     * @param changes
+     */
+    private void callChangedItems(ItemChangeSet changes) {
+        Log.v(TAG, "changed positions: " + changes);
+        for (ChangedItemsListener listener : changedListeners) {
+            listener.onChangedItems(changes);
+        }
+    }
+
     /**
      * Informs the listeners about a changed positionCache.
      * 
@@ -633,15 +1531,19 @@ public class ItemWorker extends Thread {
      * Set the filter for videos.
      * 
      * If set to true, videos are ignored for the position cache
-     * (that is rebuilt)
+     * (precomputed, it is swapped in)
      * 
      * @param filterVideos
      */
     public void setHideVideos(boolean hideVideos) {
-        this.hideVideos = hideVideos;
-        
-        // update position cache (based on the changed filtering)
-        createPositionCache();
+        saveScrollAnchor();
+
+        // swap in the position cache of the filter
+        synchronized (typePositionCaches) {
+            this.hideVideos = hideVideos;
+            positionCache = typePositionCaches.get(getTypeFilter(hideImages, hideVideos));
+        }
+        callChangedItems(ItemChangeSet.filterChanged());
         
         // inform the listeners about it (triggers UI change)
         callUpdatedItems(null);
@@ -651,15 +1553,19 @@ public class ItemWorker extends Thread {
      * Set the filter for images.
      * 
      * If set to true, images are ignored for the position cache
-     * (that is rebuilt)
+     * (precomputed, it is swapped in)
      * 
      * @param filterImages
      */
     public void setHideImages(boolean hideImages) {
-        this.hideImages = hideImages;
-        
-        // update position cache (based on the changed filtering)
-        createPositionCache();
+        saveScrollAnchor();
+
+        // swap in the position cache of the filter
+        synchronized (typePositionCaches) {
+            this.hideImages = hideImages;
+            positionCache = typePositionCaches.get(getTypeFilter(hideImages, hideVideos));
+        }
+        callChangedItems(ItemChangeSet.filterChanged());
         
         // inform the listeners about it (triggers UI change)
         callUpdatedItems(null);
@@ -690,27 +1596,39 @@ public class ItemWorker extends Thread {
      * are associated with that tag, this could require a
      * requery of items.
      * The query method will only look for items with that
-     * tag.
+     * tag. The position caches are rebuilt within the worker
+     * thread.
      * 
      * @param name
      */
-    public void setShowTag(String name) {
-        Log.v(TAG, "set tag filtering for " + name);
-        this.showTagName = name;
-        
-        // re-create the postition cache only with items of that tag
-        createPositionCache();
-        
-        if (positionCache.size() == 0) {
-            // look for items (this will only query items with the tag)
-            queryFirstItems();
+    public void setShowTag(final String name) {
+        if (!isAlive() || handler == null) {
+            return;
         }
-        
-        // allow for queries again
-        resetLockedQuery();
-        
-        // inform the listeners about it (triggers UI change)
-        callUpdatedItems(null);
+
+        Log.v(TAG, "set tag filtering for " + name);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                saveScrollAnchor();
+                showTagName = name;
+                rangeTop = -1;
+                rangeBottom = -1;
+                
+                // re-create the postition cache only with items of that tag
+                setPositionCaches(createPositionCaches(), ItemChangeSet.filterChanged(), null);
+                
+                if (positionCache.size() == 0) {
+                    // look for items (this will only query items with the tag)
+                    queryFirstItems();
+                }
+                
+                // allow for queries again
+                resetLockedQuery();
+                
+                // inform the listeners about it (triggers UI change)
+                callUpdatedItems(null);
+            }});
     }
 
     @Override
@@ -720,6 +1638,11 @@ public class ItemWorker extends Thread {
             Looper.prepare();
 
             handler = new Handler();
+            handler.post(new Runnable() {
+                public void run() {
+                    loadItemDiskCache();
+                }
+            });
             queryFirstItems();
 
             Looper.loop(); // gogogo!
@@ -729,6 +1652,16 @@ public class ItemWorker extends Thread {
         }
     }
 
+    /**
+     * Return the position of the item in the position cache.
+     * 
+     * @param itemId
+     * @return position or -1 if not cached or filtered
+     */
+    public int getPositionById(int itemId) {
+        return positionCache.indexOf(itemId);
+    }
+
     /**
      * Search the position cache for the previous ID before the provided itemId.
      * 
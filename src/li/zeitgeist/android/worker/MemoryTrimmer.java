@@ -0,0 +1,70 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android.worker;
+
+/**
+ * Interface for workers that give memory back under pressure.
+ *
+ * The levels are the ones of ComponentCallbacks2 (API level 14),
+ * repeated here because the application is built against an older
+ * platform. Higher levels mean more pressure.
+ */
+public interface MemoryTrimmer {
+
+    /**
+     * Running, the device begins to run low on memory.
+     */
+    public static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+
+    /**
+     * Running, the device is running much lower on memory.
+     */
+    public static final int TRIM_MEMORY_RUNNING_LOW = 10;
+
+    /**
+     * Running, but the system will begin killing background processes.
+     */
+    public static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+
+    /**
+     * The user interface is no longer visible.
+     */
+    public static final int TRIM_MEMORY_UI_HIDDEN = 20;
+
+    /**
+     * In the background, on the list of processes to be killed.
+     */
+    public static final int TRIM_MEMORY_BACKGROUND = 40;
+
+    /**
+     * In the middle of the list of processes to be killed.
+     */
+    public static final int TRIM_MEMORY_MODERATE = 60;
+
+    /**
+     * Among the first processes to be killed.
+     */
+    public static final int TRIM_MEMORY_COMPLETE = 80;
+
+    /**
+     * Release memory according to the level.
+     *
+     * @param level one of the TRIM_MEMORY_* levels
+     */
+    public void trimMemory(int level);
+}
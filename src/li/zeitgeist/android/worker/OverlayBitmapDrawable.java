@@ -0,0 +1,58 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android.worker;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+
+/**
+ * Bitmap drawable with an overlay drawn on top at draw time.
+ *
+ * Used for the play icon of video thumbnails: the overlay bitmap is
+ * shared by all drawables, so no composited copy of the thumbnail
+ * needs to be created, cached or recreated after an eviction.
+ */
+public class OverlayBitmapDrawable extends BitmapDrawable {
+
+    /**
+     * Shared overlay, drawn unscaled at the top left corner.
+     */
+    private final Bitmap overlay;
+
+    /**
+     * Constructs the drawable.
+     *
+     * @param res resources of the context (for the density)
+     * @param bitmap thumbnail
+     * @param overlay drawn on top of the thumbnail
+     */
+    public OverlayBitmapDrawable(Resources res, Bitmap bitmap, Bitmap overlay) {
+        super(res, bitmap);
+        this.overlay = overlay;
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        super.draw(canvas);
+        Rect bounds = getBounds();
+        canvas.drawBitmap(overlay, bounds.left, bounds.top, null);
+    }
+}
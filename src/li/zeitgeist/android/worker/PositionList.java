@@ -0,0 +1,212 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android.worker;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Immutable list of item ids, newest first, used as position cache.
+ *
+ * Pages of items are prepended or appended far more often than
+ * items are removed. A list is a window into an array with free
+ * slots on both sides: prepending and appending fill the slots next
+ * to the window and return a wider window of the same array, the
+ * readers of the old window never look at those slots. Only the
+ * widest window of an array is extended in place, the others (and
+ * every other change) copy the ids.
+ *
+ * New lists are only derived within the worker thread.
+ */
+public class PositionList extends AbstractList<Integer> implements RandomAccess {
+
+    /**
+     * Free slots on each side of a copied list.
+     */
+    private static final int HEADROOM = 256;
+
+    /**
+     * Array shared by the windows derived from each other.
+     */
+    private static class Storage {
+
+        /**
+         * Item ids, newest first.
+         */
+        private final int[] ids;
+
+        /**
+         * Slots used by the widest window (from inclusive, to exclusive).
+         */
+        private int usedFrom, usedTo;
+
+        /**
+         * Constructs the storage.
+         *
+         * @param capacity number of slots
+         */
+        private Storage(int capacity) {
+            ids = new int[capacity];
+        }
+    }
+
+    /**
+     * Array of the ids.
+     */
+    private final Storage storage;
+
+    /**
+     * Slots of this list (from inclusive, to exclusive).
+     */
+    private final int from, to;
+
+    /**
+     * Constructs a window into the storage.
+     *
+     * @param storage
+     * @param from inclusive
+     * @param to exclusive
+     */
+    private PositionList(Storage storage, int from, int to) {
+        this.storage = storage;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Return a list of the ids.
+     *
+     * @param ids newest first
+     * @return list
+     */
+    public static PositionList of(List<Integer> ids) {
+        Storage storage = new Storage(ids.size() + 2 * HEADROOM);
+        for (int i = 0; i < ids.size(); i++) {
+            storage.ids[HEADROOM + i] = ids.get(i);
+        }
+        storage.usedFrom = HEADROOM;
+        storage.usedTo = HEADROOM + ids.size();
+        return new PositionList(storage, storage.usedFrom, storage.usedTo);
+    }
+
+    @Override
+    public Integer get(int index) {
+        if (index < 0 || index >= to - from) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + (to - from));
+        }
+        return storage.ids[from + index];
+    }
+
+    @Override
+    public int size() {
+        return to - from;
+    }
+
+    /**
+     * Return the position of an id, by binary search.
+     *
+     * @param o item id
+     * @return position or -1
+     */
+    @Override
+    public int indexOf(Object o) {
+        if (!(o instanceof Integer)) {
+            return -1;
+        }
+        int id = (Integer) o;
+        int lo = from, hi = to - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int midId = storage.ids[mid];
+            if (midId == id) {
+                return mid - from;
+            }
+            if (midId > id) {
+                lo = mid + 1;
+            }
+            else {
+                hi = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) >= 0;
+    }
+
+    /**
+     * Return the list with newer ids in front.
+     *
+     * @param ids newest first, all newer than the first id
+     * @return list
+     */
+    public PositionList prepend(List<Integer> ids) {
+        int count = ids.size();
+        if (count == 0) {
+            return this;
+        }
+        if (from != storage.usedFrom || from < count) {
+            return copy(count, 0).prepend(ids);
+        }
+        for (int i = 0; i < count; i++) {
+            storage.ids[from - count + i] = ids.get(i);
+        }
+        storage.usedFrom = from - count;
+        return new PositionList(storage, from - count, to);
+    }
+
+    /**
+     * Return the list with older ids at the end.
+     *
+     * @param ids newest first, all older than the last id
+     * @return list
+     */
+    public PositionList append(List<Integer> ids) {
+        int count = ids.size();
+        if (count == 0) {
+            return this;
+        }
+        if (to != storage.usedTo || storage.ids.length - to < count) {
+            return copy(0, count).append(ids);
+        }
+        for (int i = 0; i < count; i++) {
+            storage.ids[to + i] = ids.get(i);
+        }
+        storage.usedTo = to + count;
+        return new PositionList(storage, from, to + count);
+    }
+
+    /**
+     * Copy the ids into a new array with free slots on both sides.
+     *
+     * @param before slots needed in front, besides the headroom
+     * @param after slots needed at the end, besides the headroom
+     * @return list
+     */
+    private PositionList copy(int before, int after) {
+        int size = to - from;
+        Storage copy = new Storage(before + size + after + 2 * HEADROOM);
+        copy.usedFrom = before + HEADROOM;
+        copy.usedTo = copy.usedFrom + size;
+        System.arraycopy(storage.ids, from, copy.ids, copy.usedFrom, size);
+        return new PositionList(copy, copy.usedFrom, copy.usedTo);
+    }
+}
@@ -0,0 +1,289 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android.worker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+
+/**
+ * Fixed size thread pool that runs visible work before prefetching.
+ *
+ * Tasks of the visible class are executed last-in first-out, so
+ * the cells the user looked at last are loaded first. Prefetch
+ * tasks are executed first-in first-out, but only if no visible
+ * task is waiting.
+ *
+ * The queue can be bounded: if it is full the lowest ranked task
+ * is dropped and handed to the RejectedExecutionHandler.
+ *
+ * Cancelling a task does not remove it from the queue, which is a
+ * linear scan. Cancelled tasks are skipped when they are run, and
+ * purged once the queue is full.
+ */
+public class PriorityExecutor extends ThreadPoolExecutor {
+
+    /**
+     * Background work, for instance thumbnails of a new page.
+     */
+    public static final int PRIORITY_PREFETCH = 0;
+
+    /**
+     * Work for something that is on the screen.
+     */
+    public static final int PRIORITY_VISIBLE = 1;
+
+    /**
+     * Interface of tasks that can be cancelled while queued.
+     */
+    public interface CancellableTask extends Runnable {
+        public boolean isCancelled();
+    }
+
+    /**
+     * Increasing sequence number to order tasks of the same class.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Maximum number of waiting tasks, 0 for unbounded.
+     */
+    private final int capacity;
+
+    /**
+     * Guards the capacity check and the enqueueing.
+     */
+    private final Object queueLock = new Object();
+
+    /**
+     * Throughput of this thread pool.
+     */
+    private final StageMetrics metrics;
+
+    /**
+     * Constructs the thread pool with an unbounded queue.
+     *
+     * @param threads number of threads
+     */
+    public PriorityExecutor(int threads) {
+        this("pool", threads, 0, new AbortPolicy());
+    }
+
+    /**
+     * Constructs the thread pool.
+     *
+     * @param name of the stage (for metrics)
+     * @param threads number of threads
+     * @param capacity maximum number of waiting tasks, 0 for unbounded
+     * @param dropHandler called with tasks dropped from a full queue
+     */
+    public PriorityExecutor(String name, int threads, int capacity, 
+            RejectedExecutionHandler dropHandler) {
+        super(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), dropHandler);
+        this.capacity = capacity;
+        metrics = new StageMetrics(name);
+    }
+
+    /**
+     * Return the throughput metrics of this thread pool.
+     *
+     * @return metrics
+     */
+    public StageMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Execute a task with visible priority.
+     */
+    @Override
+    public void execute(Runnable task) {
+        execute(task, PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Execute a task with the given priority.
+     *
+     * @param task
+     * @param priority PRIORITY_VISIBLE or PRIORITY_PREFETCH
+     */
+    public void execute(Runnable task, int priority) {
+        PrioritizedTask entry = new PrioritizedTask(task, priority, sequence.incrementAndGet());
+        PrioritizedTask dropped = null;
+        synchronized (queueLock) {
+            if (capacity > 0 && getQueue().size() >= capacity) {
+                purgeCancelled();
+            }
+            if (capacity > 0 && getQueue().size() >= capacity) {
+                // find the task that would run last
+                PrioritizedTask last = null;
+                for (Runnable queued : getQueue()) {
+                    PrioritizedTask queuedTask = (PrioritizedTask) queued;
+                    if (last == null || queuedTask.compareTo(last) > 0) {
+                        last = queuedTask;
+                    }
+                }
+                if (last == null || entry.compareTo(last) > 0) {
+                    dropped = entry;
+                }
+                else if (super.remove(last)) {
+                    dropped = last;
+                }
+            }
+            if (dropped != entry) {
+                super.execute(entry);
+            }
+        }
+        if (dropped != null) {
+            metrics.recordDropped();
+            getRejectedExecutionHandler().rejectedExecution(dropped.task, this);
+        }
+    }
+
+    /**
+     * Remove the cancelled tasks from the queue, in a single pass.
+     *
+     * Must hold the queueLock.
+     */
+    private void purgeCancelled() {
+        List<Runnable> queued = new ArrayList<Runnable>(getQueue().size());
+        getQueue().drainTo(queued);
+        for (Runnable entry : queued) {
+            if (!((PrioritizedTask) entry).isCancelled()) {
+                getQueue().add(entry);
+            }
+        }
+    }
+
+    /**
+     * Requeue a waiting task with the given priority.
+     *
+     * Visible tasks move to the front of their class again.
+     *
+     * @param task
+     * @param priority
+     * @return false if the task is not waiting anymore
+     */
+    public boolean reprioritize(Runnable task, int priority) {
+        if (!remove(task)) {
+            return false;
+        }
+        execute(task, priority);
+        return true;
+    }
+
+    /**
+     * Remove a waiting task from the queue.
+     *
+     * @param task
+     * @return true if removed
+     */
+    @Override
+    public boolean remove(Runnable task) {
+        for (Runnable queued : getQueue()) {
+            if (queued == task || ((PrioritizedTask) queued).task == task) {
+                return super.remove(queued);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queue entry that orders tasks by priority and sequence.
+     */
+    private class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+
+        /**
+         * The wrapped task.
+         */
+        private final Runnable task;
+
+        /**
+         * Priority class of the task.
+         */
+        private final int priority;
+
+        /**
+         * Sequence number at the time the task was queued.
+         */
+        private final long sequence;
+
+        /**
+         * Uptime when the task was queued.
+         */
+        private final long queuedAt;
+
+        /**
+         * Constructs the queue entry.
+         *
+         * @param task
+         * @param priority
+         * @param sequence
+         */
+        public PrioritizedTask(Runnable task, int priority, long sequence) {
+            this.task = task;
+            this.priority = priority;
+            this.sequence = sequence;
+            queuedAt = SystemClock.uptimeMillis();
+        }
+
+        /**
+         * True if the wrapped task was cancelled while queued.
+         *
+         * @return boolean
+         */
+        public boolean isCancelled() {
+            return task instanceof CancellableTask && ((CancellableTask) task).isCancelled();
+        }
+
+        public void run() {
+            if (isCancelled()) {
+                return;
+            }
+            long startedAt = SystemClock.uptimeMillis();
+            try {
+                task.run();
+            }
+            finally {
+                metrics.recordCompleted(startedAt - queuedAt,
+                        SystemClock.uptimeMillis() - startedAt);
+            }
+        }
+
+        public int compareTo(PrioritizedTask other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            if (sequence == other.sequence) {
+                return 0;
+            }
+            boolean before = sequence < other.sequence;
+            if (priority == PRIORITY_VISIBLE) {
+                before = !before; // last in, first out
+            }
+            return before ? -1 : 1;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android.worker;
+
+import li.zeitgeist.android.ZeitgeistApp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import android.graphics.*;
+import android.util.Log;
+
+/**
+ * Memory-mapped cache of already decoded thumbnail pixels.
+ *
+ * Sits between the in-memory LruCache and the jpeg disk cache:
+ * thumbnails are stored as raw RGB_565 pixel blocks of the current
+ * grid cell size, each in a fixed slot of a memory-mapped file.
+ * Restoring a thumbnail is a plain copy of the block into a
+ * bitmap, there is no decoding involved.
+ *
+ * The slot index is only kept in memory, the content of the file
+ * is meaningless after a restart. Each slot remembers the config of
+ * the bitmap it was stored from, blocks converted from another
+ * config (with less colors) are not handed out as RGB_565 pixels.
+ */
+public class RawPixelCache {
+
+    /**
+     * Standard android logging tag.
+     */
+    private static final String TAG = ZeitgeistApp.TAG + ":RawPixelCache";
+
+    /**
+     * Size of a single RGB_565 pixel.
+     */
+    private static final int BYTES_PER_PIXEL = 2;
+
+    /**
+     * File that is mapped into memory.
+     */
+    private File file;
+
+    /**
+     * Maximum size of the mapped file in bytes.
+     */
+    private int maxBytes;
+
+    /**
+     * Width and height of the (square) pixel blocks, 0 if unknown.
+     */
+    private int cellSize = 0;
+
+    /**
+     * Size of each slot in bytes.
+     */
+    private int slotBytes;
+
+    /**
+     * The mapped file, null as long as the cell size is unknown.
+     */
+    private MappedByteBuffer buffer;
+
+    /**
+     * Maps item ids to slot indices, in access order (least recent first).
+     */
+    private LinkedHashMap<Integer, Integer> slots;
+
+    /**
+     * Slot indices that are currently unused.
+     */
+    private LinkedList<Integer> freeSlots;
+
+    /**
+     * Config of the bitmap each slot was stored from.
+     */
+    private Bitmap.Config[] slotConfigs;
+
+    /**
+     * Bitmap of the cell size used to convert foreign bitmaps.
+     */
+    private Bitmap scratchBitmap;
+
+    /**
+     * Canvas drawing into the scratch bitmap.
+     */
+    private Canvas scratchCanvas;
+
+    /**
+     * Reused matrix to center crop foreign bitmaps into the scratch bitmap.
+     */
+    private Matrix matrix;
+
+    /**
+     * Paint with bitmap filtering enabled.
+     */
+    private Paint paint;
+
+    /**
+     * Constructs the raw pixel cache.
+     *
+     * The cache stays disabled until the cell size is set.
+     *
+     * @param file to map the pixel blocks into
+     * @param maxBytes maximum size of the file
+     */
+    public RawPixelCache(File file, int maxBytes) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        slots = new LinkedHashMap<Integer, Integer>(16, 0.75f, true);
+        freeSlots = new LinkedList<Integer>();
+        matrix = new Matrix();
+        paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    }
+
+    /**
+     * Set the size of the grid cells, this discards all cached pixels
+     * if the size has changed.
+     *
+     * @param cellSize width and height in pixels
+     */
+    public synchronized void setCellSize(int cellSize) {
+        if (cellSize == this.cellSize) {
+            return;
+        }
+        release();
+        if (cellSize <= 0) {
+            return;
+        }
+
+        slotBytes = cellSize * cellSize * BYTES_PER_PIXEL;
+        int slotCount = maxBytes / slotBytes;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength((long) slotCount * slotBytes);
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                        0, (long) slotCount * slotBytes);
+            }
+            finally {
+                raf.close(); // the mapping stays valid
+            }
+        }
+        catch (IOException e) {
+            Log.e(TAG, "unable to map raw pixel cache: " + file.getAbsolutePath());
+            e.printStackTrace();
+            buffer = null;
+            return;
+        }
+
+        this.cellSize = cellSize;
+        slotConfigs = new Bitmap.Config[slotCount];
+        for (int slot = 0; slot < slotCount; slot++) {
+            freeSlots.add(slot);
+        }
+        scratchBitmap = Bitmap.createBitmap(cellSize, cellSize, Bitmap.Config.RGB_565);
+        scratchCanvas = new Canvas(scratchBitmap);
+        Log.d(TAG, "raw pixel cache with " + String.valueOf(slotCount) +
+                " slots of " + String.valueOf(cellSize) + "px");
+    }
+
+    /**
+     * Return the current cell size (0 if disabled).
+     *
+     * @return size in pixels
+     */
+    public synchronized int getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * True if the pixels of the item are stored.
+     *
+     * @param id of the item
+     * @return boolean
+     */
+    public synchronized boolean contains(int id) {
+        return slots.containsKey(id);
+    }
+
+    /**
+     * Store the pixels of a thumbnail bitmap.
+     *
+     * Bitmaps that are not RGB_565 of the cell size are center
+     * cropped into it first. Evicts the least recently used
+     * block if all slots are taken.
+     *
+     * @param id of the item
+     * @param bitmap thumbnail
+     */
+    public synchronized void put(int id, Bitmap bitmap) {
+        if (buffer == null || bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (slots.containsKey(id)) {
+            slots.get(id); // only mark as recently used
+            return;
+        }
+
+        Integer slot = freeSlots.poll();
+        if (slot == null) {
+            if (slots.isEmpty()) {
+                return; // the cell size is larger than the whole file
+            }
+            Iterator<Map.Entry<Integer, Integer>> eldest = slots.entrySet().iterator();
+            slot = eldest.next().getValue();
+            eldest.remove();
+        }
+
+        slotConfigs[slot] = bitmap.getConfig();
+        if (!isCellBitmap(bitmap)) {
+            drawCentered(bitmap);
+            bitmap = scratchBitmap;
+        }
+        bitmap.copyPixelsToBuffer(getBlock(slot));
+        slots.put(id, slot);
+    }
+
+    /**
+     * Copy the stored pixels of the item into the target bitmap.
+     *
+     * Only blocks stored from a bitmap of the target's config are
+     * copied.
+     *
+     * @param id of the item
+     * @param target mutable RGB_565 bitmap of the cell size
+     * @return false if the pixels are not cached
+     */
+    public synchronized boolean get(int id, Bitmap target) {
+        Integer slot = slots.get(id);
+        if (slot == null || !isCellBitmap(target) || slotConfigs[slot] != target.getConfig()) {
+            return false;
+        }
+        target.copyPixelsFromBuffer(getBlock(slot));
+        return true;
+    }
+
+    /**
+     * Forget all stored pixel blocks.
+     */
+    public synchronized void clear() {
+        slots.clear();
+        freeSlots.clear();
+        if (buffer != null) {
+            int slotCount = buffer.capacity() / slotBytes;
+            for (int slot = 0; slot < slotCount; slot++) {
+                freeSlots.add(slot);
+            }
+        }
+    }
+
+    /**
+     * Forget everything and drop the mapping, the cache is disabled
+     * until the next cell size is set.
+     */
+    public synchronized void release() {
+        slots.clear();
+        freeSlots.clear();
+        buffer = null;
+        slotConfigs = null;
+        cellSize = 0;
+        if (scratchBitmap != null) {
+            scratchBitmap.recycle();
+            scratchBitmap = null;
+            scratchCanvas = null;
+        }
+    }
+
+    /**
+     * True if the bitmap can be copied to or from a block directly.
+     *
+     * @param bitmap
+     * @return boolean
+     */
+    private boolean isCellBitmap(Bitmap bitmap) {
+        return bitmap.getConfig() == Bitmap.Config.RGB_565 &&
+                bitmap.getWidth() == cellSize && bitmap.getHeight() == cellSize;
+    }
+
+    /**
+     * Return a view of the mapped file limited to one slot.
+     *
+     * @param slot index
+     * @return buffer positioned at the start of the slot
+     */
+    private ByteBuffer getBlock(int slot) {
+        ByteBuffer block = buffer.duplicate();
+        block.position(slot * slotBytes);
+        block.limit(slot * slotBytes + slotBytes);
+        return block;
+    }
+
+    /**
+     * Center crop (like the gallery ImageViews do) the bitmap
+     * into the scratch bitmap.
+     *
+     * @param bitmap
+     */
+    private void drawCentered(Bitmap bitmap) {
+        float scale = Math.max((float) cellSize / bitmap.getWidth(),
+                (float) cellSize / bitmap.getHeight());
+        matrix.setScale(scale, scale);
+        matrix.postTranslate((cellSize - bitmap.getWidth() * scale) / 2f,
+                (cellSize - bitmap.getHeight() * scale) / 2f);
+        scratchCanvas.drawColor(Color.BLACK);
+        scratchCanvas.drawBitmap(bitmap, matrix, paint);
+    }
+}
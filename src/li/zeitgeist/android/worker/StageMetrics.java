@@ -0,0 +1,126 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android.worker;
+
+import android.os.SystemClock;
+
+/**
+ * Throughput counters of a single pipeline stage.
+ *
+ * Counts the executed and dropped tasks of a stage and the time
+ * they spent waiting in the queue and running.
+ */
+public class StageMetrics {
+
+    /**
+     * Name of the stage, used in the summary.
+     */
+    private final String name;
+
+    /**
+     * Uptime when the stage was started.
+     */
+    private final long startedAt;
+
+    /**
+     * Number of executed tasks.
+     */
+    private long completed = 0;
+
+    /**
+     * Number of tasks dropped because the queue was full.
+     */
+    private long dropped = 0;
+
+    /**
+     * Sum of the time tasks waited in the queue.
+     */
+    private long waitMillis = 0;
+
+    /**
+     * Sum of the time tasks were running.
+     */
+    private long busyMillis = 0;
+
+    /**
+     * Constructs the metrics of a stage.
+     *
+     * @param name of the stage
+     */
+    public StageMetrics(String name) {
+        this.name = name;
+        startedAt = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Record an executed task.
+     *
+     * @param waitMillis time spent in the queue
+     * @param busyMillis time spent running
+     */
+    public synchronized void recordCompleted(long waitMillis, long busyMillis) {
+        completed++;
+        this.waitMillis += waitMillis;
+        this.busyMillis += busyMillis;
+    }
+
+    /**
+     * Record a dropped task.
+     */
+    public synchronized void recordDropped() {
+        dropped++;
+    }
+
+    /**
+     * Return the number of executed tasks.
+     *
+     * @return count
+     */
+    public synchronized long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * Return the number of dropped tasks.
+     *
+     * @return count
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Executed tasks per second since the stage was started.
+     *
+     * @return throughput
+     */
+    public synchronized float getThroughput() {
+        long elapsed = Math.max(1, SystemClock.uptimeMillis() - startedAt);
+        return completed * 1000f / elapsed;
+    }
+
+    /**
+     * Return a one line summary for the log.
+     */
+    @Override
+    public synchronized String toString() {
+        long n = Math.max(1, completed);
+        return String.format("%s: %d done (%.1f/s), %d dropped, avg wait %dms, avg busy %dms",
+                name, completed, getThroughput(), dropped, waitMillis / n, busyMillis / n);
+    }
+}
@@ -28,12 +28,23 @@ import li.zeitgeist.api.Item.Type;
 
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.net.URL;
+import java.net.URLConnection;
 
+import android.app.ActivityManager;
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.graphics.*;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.support.v4.util.LruCache;
 import android.util.Log;
 
@@ -42,13 +53,18 @@ import li.zeitgeist.api.ZeitgeistApi;
 /**
  * Concurrently loads thumbnail bitmaps and cache them on disk and memory.
  *
- * This class downloads and caches thumbnails from Zeitgeist. It uses
- * a fixed size ThreadPool (ExecutorService) for downloading and
- * reading from disk cache (sdcard). It maintains two caches to store 
- * the bitmaps: A LruCache with a fixed size and a disk cache on 
- * the sdcard.
+ * This class downloads and caches thumbnails from Zeitgeist. Loads
+ * pass a pipeline of thread pools (PriorityExecutor): reading from
+ * the caches (sdcard), downloading and writing to the disk cache,
+ * so slow downloads don't hold back cached thumbnails. Thumbnails of
+ * visible views are loaded before prefetched ones. It maintains three caches to store 
+ * the bitmaps: A LruCache with a fixed size, a memory-mapped file
+ * of raw decoded pixels (RawPixelCache) and a disk cache on 
+ * the sdcard. All three are keyed by content (ContentIndex), so
+ * reposted images share their thumbnail. Medium resolution previews for the item detail view
+ * are cached separately, with their own budget.
  */
-public class ThumbnailWorker implements UpdatedItemsListener {
+public class ThumbnailWorker implements UpdatedItemsListener, MemoryTrimmer {
 
     /**
      * Standard android logging tag.
@@ -56,9 +72,117 @@ public class ThumbnailWorker implements UpdatedItemsListener {
     private static final String TAG = ZeitgeistApp.TAG + ":ThumbnailWorker";
 
     /**
-     * How many threads the ThreadPool (ExecutorService) should use.
+     * Threads reading and decoding thumbnails from the caches.
      */
-    private static final int THREADS = 8;
+    private static final int DISK_THREADS = 2;
+
+    /**
+     * Lower bound of concurrent downloads.
+     */
+    private static final int MIN_DOWNLOADS = 1;
+
+    /**
+     * Upper bound of concurrent downloads.
+     */
+    private static final int MAX_DOWNLOADS = 12;
+
+    /**
+     * Concurrent downloads to start with, adjusted by the limiter.
+     */
+    private static final int INITIAL_DOWNLOADS = 4;
+
+    /**
+     * Timeout to connect to the server (ms).
+     */
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    /**
+     * Timeout for reading the thumbnail (ms).
+     */
+    private static final int READ_TIMEOUT = 15000;
+
+    /**
+     * Bytes of a downloaded image kept for re-reading after its
+     * bounds are decoded, enough for the headers of most images.
+     */
+    private static final int BOUNDS_MARK_LIMIT = 64 * 1024;
+
+    /**
+     * Maximum number of loads waiting for the disk stage.
+     */
+    private static final int DISK_QUEUE_SIZE = 256;
+
+    /**
+     * Maximum number of loads waiting for the network stage.
+     */
+    private static final int NETWORK_QUEUE_SIZE = 128;
+
+    /**
+     * Maximum number of thumbnails waiting to be written to disk,
+     * the oldest writes are dropped if the disk can't keep up.
+     */
+    private static final int WRITE_QUEUE_SIZE = 32;
+
+    /**
+     * Maximum size of the memory-mapped raw pixel cache file.
+     */
+    private static final int RAW_CACHE_SIZE = 8 * 1024 * 1024; // 8 MiB
+
+    /**
+     * Fraction of the application heap used by the memory cache.
+     */
+    private static final int MEM_CACHE_FRACTION = 8;
+
+    /**
+     * Devices with a heap of up to this size (MiB) decode in RGB_565
+     * if the decode mode is automatic.
+     */
+    private static final int LOW_MEMORY_CLASS = 32;
+
+    /**
+     * Decode mode setting: choose by the memory class of the device.
+     */
+    public static final String DECODE_MODE_AUTO = "auto";
+
+    /**
+     * Decode mode setting: opaque thumbnails in RGB_565 (half the memory).
+     */
+    public static final String DECODE_MODE_RGB_565 = "rgb565";
+
+    /**
+     * Decode mode setting: all thumbnails in ARGB_8888.
+     */
+    public static final String DECODE_MODE_ARGB_8888 = "argb8888";
+
+    /**
+     * Fraction of the application heap used by the preview cache.
+     */
+    private static final int PREVIEW_CACHE_FRACTION = 16;
+
+    /**
+     * Size of the previews in the item detail view (dp).
+     */
+    private static final int PREVIEW_SIZE_DP = 200;
+
+    /**
+     * Width and height of the placeholder color grid.
+     */
+    private static final int PLACEHOLDER_GRID = 4;
+
+    /**
+     * Filename prefix of previews in the disk cache.
+     */
+    private static final String PREVIEW_CACHE_PREFIX = "preview_";
+
+    /**
+     * Filename prefix of thumbnails in the disk cache.
+     */
+    private static final String DISK_CACHE_PREFIX = "thumb_";
+
+    /**
+     * Filename suffix of thumbnails in the disk cache.
+     */
+    private static final String DISK_CACHE_SUFFIX = ".jpg";
 
     /**
      * Interface for loaded thumbnail listeners.
@@ -68,176 +192,1290 @@ public class ThumbnailWorker implements UpdatedItemsListener {
     }
 
     /**
-     * In-Memory cache, with a fixed size.
+     * In-Memory cache, with a fixed size.
+     * 
+     * Keyed by item id and thumbnail size.
+     * @see #getMemCacheKey(int, int)
+     */
+    private LruCache<Long, Bitmap> memCache = null;
+
+    /**
+     * Width and height of the gallery grid cells, thumbnails are
+     * decoded and scaled to this size (0 if unknown: original size).
+     */
+    private volatile int thumbnailSize = 0;
+
+    /**
+     * Medium resolution previews for the item detail view, by item id.
+     */
+    private LruCache<Integer, Bitmap> previewCache;
+
+    /**
+     * Maximum width and height of the previews (px).
+     */
+    private int previewSize;
+
+    /**
+     * Listeners of the previews currently loading, by item id.
+     */
+    private Map<Integer, List<LoadedThumbnailListener>> inFlightPreviews;
+
+    /**
+     * Memory class of the device (heap size in MiB).
+     */
+    private int memoryClass;
+
+    /**
+     * Bitmap configuration thumbnails are decoded in.
+     */
+    private volatile Bitmap.Config decodeConfig = Bitmap.Config.ARGB_8888;
+
+    /**
+     * Decoded pixels of thumbnails that fell out of the memory cache.
+     */
+    private RawPixelCache rawCache;
+
+    /**
+     * Disk cache, points to sdcard application cache.
+     */
+    private File diskCache;
+
+    /**
+     * Ids of the thumbnails stored in the disk cache.
+     */
+    private DiskCacheIndex diskCacheIndex;
+
+    /**
+     * Maps item ids to the (content) id their thumbnail is cached
+     * under, duplicates share the thumbnail of the first item.
+     */
+    private ContentIndex contentIndex;
+
+    /**
+     * First stage: reads thumbnails from memory, raw and disk cache.
+     * 
+     * Loads that miss all caches continue in the network stage.
+     * Both stages run the loads of visible thumbnails before
+     * prefetching.
+     */
+    private PriorityExecutor diskStage;
+
+    /**
+     * Second stage: downloads and decodes thumbnails.
+     */
+    private PriorityExecutor networkStage;
+
+    /**
+     * Adjusts the threads of the network stage to the observed
+     * download latency and errors.
+     */
+    private ConcurrencyLimiter downloadLimiter;
+
+    /**
+     * Third stage: writes downloaded thumbnails to the disk cache
+     * (write-behind), the load does not wait for it. Dropped writes
+     * only cost a download later.
+     */
+    private PriorityExecutor writerStage;
+
+    /**
+     * Uptime when the last page of new items arrived, 0 after the
+     * first visible thumbnail of that page has been loaded.
+     */
+    private volatile long pageLoadedAt = 0;
+
+    /**
+     * Loads that are queued or running, by item id.
+     * 
+     * Further requests for the same item attach their listener
+     * to the existing load instead of submitting another one.
+     */
+    private Map<Integer, ThumbnailLoad> inFlight;
+    
+    /**
+     * The bitmap to overlay video thumbnails with.
+     */
+    private Bitmap videoOverlayBitmap;
+
+    /**
+     * Resources of the context, for the thumbnail drawables.
+     */
+    private Resources resources;
+
+    /**
+     * Tells whether previews may be downloaded ahead of time.
+     */
+    private ConnectivityManager connectivityManager;
+
+    /**
+     * Memory released under memory pressure.
+     */
+    private TrimMetrics trimMetrics = new TrimMetrics("thumbnails", "bytes");
+    
+    /**
+     * Zeitgeist Java API instance.
+     */
+    private ZeitgeistApi api;
+
+    /**
+     * Stores the placeholder previews with the items.
+     */
+    private ItemWorker itemWorker;
+  
+    /**
+     * Constructs the thumbnail loader.
+     *
+     * This starts the thread pool, initializes the memory cache,
+     * and creates the directories for the disk-cache (if necessary).
+     * 
+     * @param context of the gallery service.
+     * @param itemWorker stores the placeholder previews
+     */
+    public ThumbnailWorker(Context context, ItemWorker itemWorker) {
+        this.itemWorker = itemWorker;
+        Log.v(TAG, "constructed");
+        
+        api = ZeitgeistApiFactory.createInstance(context);
+        
+        // start the thread pools of the pipeline, loads dropped from
+        // a full queue are cancelled, a full write queue makes the
+        // network threads write themselves.
+        RejectedExecutionHandler cancelDropped = new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                if (task instanceof StageTask) {
+                    ((StageTask) task).load.drop();
+                }
+                else if (task instanceof PreviewTask) {
+                    completePreview(((PreviewTask) task).item, null);
+                }
+            }
+        };
+        diskStage = new PriorityExecutor("disk", DISK_THREADS, 
+                DISK_QUEUE_SIZE, cancelDropped);
+        networkStage = new PriorityExecutor("network", INITIAL_DOWNLOADS, 
+                NETWORK_QUEUE_SIZE, cancelDropped);
+        downloadLimiter = new ConcurrencyLimiter(MIN_DOWNLOADS, MAX_DOWNLOADS,
+                INITIAL_DOWNLOADS, new ConcurrencyLimiter.LimitListener() {
+            public void onLimitChanged(int limit) {
+                // excess threads finish their current download first
+                synchronized (networkStage) {
+                    if (limit > networkStage.getMaximumPoolSize()) {
+                        networkStage.setMaximumPoolSize(limit);
+                        networkStage.setCorePoolSize(limit);
+                    }
+                    else {
+                        networkStage.setCorePoolSize(limit);
+                        networkStage.setMaximumPoolSize(limit);
+                    }
+                }
+            }
+        });
+        writerStage = new PriorityExecutor("writer", 1, 
+                WRITE_QUEUE_SIZE, new ThreadPoolExecutor.DiscardPolicy());
+        inFlight = new HashMap<Integer, ThumbnailLoad>();
+
+        
+        // initialize memory cache, sized in bytes so RGB_565 thumbnails
+        // take half the budget (2 MiB on a 16 MiB heap)
+        memoryClass = ((ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE)).getMemoryClass();
+        int memCacheSize = memoryClass * 1024 * 1024 / MEM_CACHE_FRACTION;
+        Log.d(TAG, "memory class: " + String.valueOf(memoryClass) + 
+                " MiB, memory cache: " + String.valueOf(memCacheSize / 1024) + " KiB");
+        memCache = new LruCache<Long, Bitmap>(memCacheSize) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Long key,
+                    Bitmap oldBitmap, Bitmap newBitmap) {
+                if (evicted) {
+                    // keep the decoded pixels around for scrolling back
+                    demoteToRawCache(key, oldBitmap);
+                }
+            }
+        };
+
+        // the previews have their own budget, half of the thumbnails
+        int previewCacheSize = memoryClass * 1024 * 1024 / PREVIEW_CACHE_FRACTION;
+        previewCache = new LruCache<Integer, Bitmap>(previewCacheSize) {
+            @Override
+            protected int sizeOf(Integer key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+        previewSize = (int) (PREVIEW_SIZE_DP * 
+                context.getResources().getDisplayMetrics().density);
+        inFlightPreviews = new HashMap<Integer, List<LoadedThumbnailListener>>();
+
+        // the raw pixel cache is enabled once the thumbnail size is known
+        rawCache = new RawPixelCache(
+                new File(context.getCacheDir(), "thumb_pixels.raw"), RAW_CACHE_SIZE);
+
+        // create disk cache directory
+        File externalStorageDirectory = context.getExternalFilesDir(null);
+        diskCache = new File(externalStorageDirectory, "cache");
+        if (!diskCache.exists()) {
+            diskCache.mkdirs();
+        }
+        Log.d(TAG, "disk cache: " + diskCache.getAbsolutePath());
+
+        // index the disk cache once, in the background
+        diskCacheIndex = new DiskCacheIndex(DISK_CACHE_PREFIX, DISK_CACHE_SUFFIX);
+        contentIndex = new ContentIndex(new File(diskCache, "thumb_content.bin"));
+        diskStage.execute(new Runnable() {
+            public void run() {
+                // both indices are ready once the directory is scanned
+                try {
+                    contentIndex.load();
+                }
+                finally {
+                    diskCacheIndex.build(diskCache);
+                }
+            }
+        });
+
+        connectivityManager = (ConnectivityManager) context.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+
+        // load video overlay bitmap, shared by all video thumbnails
+        resources = context.getResources();
+        videoOverlayBitmap = BitmapFactory.decodeResource(
+                context.getResources(), R.drawable.video_overlay);
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        setDecodeMode(prefs.getString("thumbnailDecodeMode", DECODE_MODE_AUTO));
+    }
+
+    /**
+     * Set the bitmap configuration thumbnails are decoded in.
+     *
+     * RGB_565 halves the memory of the (opaque) thumbnails, so twice
+     * as many fit into the memory cache. Automatic mode uses it on
+     * devices with a small heap. Cached thumbnails decoded in the
+     * other configuration are dropped from memory and the raw pixel
+     * cache, which is only used for RGB_565.
+     *
+     * @param mode DECODE_MODE_AUTO, DECODE_MODE_RGB_565 or DECODE_MODE_ARGB_8888
+     */
+    public void setDecodeMode(String mode) {
+        Bitmap.Config config;
+        if (DECODE_MODE_RGB_565.equals(mode)) {
+            config = Bitmap.Config.RGB_565;
+        }
+        else if (DECODE_MODE_ARGB_8888.equals(mode)) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+        else {
+            config = memoryClass <= LOW_MEMORY_CLASS ? 
+                    Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        }
+        if (config == decodeConfig) {
+            return;
+        }
+        Log.d(TAG, "decode thumbnails in " + config.toString());
+        decodeConfig = config;
+        rawCache.clear();
+        clearMemCache();
+    }
+
+    /**
+     * Set the size of the thumbnails in the gallery grid.
+     *
+     * Thumbnails are decoded and scaled to exactly this size, the
+     * raw pixel cache stores them in this size. Cached thumbnails
+     * of another size are dropped from memory.
+     *
+     * @param thumbnailSize width and height inside the cell padding
+     */
+    public void setThumbnailSize(int thumbnailSize) {
+        // (re-)enables the raw pixel cache after memory trims
+        rawCache.setCellSize(thumbnailSize);
+        if (thumbnailSize == this.thumbnailSize) {
+            return;
+        }
+        this.thumbnailSize = thumbnailSize;
+        clearMemCache();
+    }
+
+    /**
+     * Drop all thumbnails from the memory cache.
+     *
+     * Unlike evictAll, removing does not count as eviction, so the
+     * thumbnails are not copied into the raw pixel cache.
+     */
+    private void clearMemCache() {
+        synchronized (memCache) {
+            for (Long key : memCache.snapshot().keySet()) {
+                memCache.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Store a thumbnail that leaves the memory cache in the raw
+     * pixel cache.
+     *
+     * Only RGB_565 thumbnails of the current size are kept, the raw
+     * blocks would cost ARGB_8888 thumbnails their colors.
+     *
+     * @param key memory cache key
+     * @param bitmap
+     */
+    private void demoteToRawCache(long key, Bitmap bitmap) {
+        if ((int) (key >>> 32) == thumbnailSize 
+                && bitmap.getConfig() == Bitmap.Config.RGB_565) {
+            rawCache.put((int) key, bitmap);
+        }
+    }
+
+    /**
+     * Loads thumbnail bitmap from disk or web, for a visible view.
+     *
+     * @param item api item object
+     * @param loadedListener called with the bitmap (may be null)
+     * @return request handle that allows to cancel the load
+     * @see #loadThumbnail(Item, LoadedThumbnailListener, int)
+     */
+    public ThumbnailRequest loadThumbnail(final Item item, 
+      final LoadedThumbnailListener loadedListener) {
+        return loadThumbnail(item, loadedListener, PriorityExecutor.PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Loads thumbnail bitmap from disk or web.
+     *
+     * If the thumbnail of the item is already loading the listener
+     * is attached to that load, all listeners are called with the
+     * bitmap of a single download. Visible requests move a waiting
+     * load to the front of the queue.
+     *
+     * @param item api item object
+     * @param loadedListener called with the bitmap (may be null)
+     * @param priority PriorityExecutor.PRIORITY_VISIBLE or PRIORITY_PREFETCH
+     * @return request handle that allows to cancel the load
+     */
+    public ThumbnailRequest loadThumbnail(final Item item, 
+      final LoadedThumbnailListener loadedListener, int priority) {
+        ThumbnailLoad load;
+        ThumbnailRequest request;
+        synchronized (inFlight) {
+            load = inFlight.get(item.getId());
+            if (load != null) {
+                if (priority == PriorityExecutor.PRIORITY_VISIBLE) {
+                    load.priority = priority;
+                    load.stage.reprioritize(load.stageTask, priority);
+                }
+                return load.addRequest(loadedListener);
+            }
+            load = new ThumbnailLoad(item);
+            load.priority = priority;
+            request = load.addRequest(loadedListener);
+            inFlight.put(item.getId(), load);
+            load.enqueue(diskStage, new DiskReadTask(load));
+        }
+        return request;
+    }
+
+    /**
+     * Handle of a single loadThumbnail() call.
+     */
+    public class ThumbnailRequest {
+
+        /**
+         * The (possibly shared) load this request is attached to.
+         */
+        private final ThumbnailLoad load;
+
+        /**
+         * Called with the bitmap, may be null.
+         */
+        private final LoadedThumbnailListener listener;
+
+        /**
+         * Set once the request is cancelled, guarded by inFlight.
+         */
+        private boolean cancelled = false;
+
+        /**
+         * Constructs the request.
+         * 
+         * @param load
+         * @param listener
+         */
+        private ThumbnailRequest(ThumbnailLoad load, 
+                LoadedThumbnailListener listener) {
+            this.load = load;
+            this.listener = listener;
+        }
+
+        /**
+         * Return the id of the item that is loaded.
+         * 
+         * @return item id
+         */
+        public int getId() {
+            return load.item.getId();
+        }
+
+        /**
+         * Detach from the load, the listener will not be called.
+         * 
+         * If no other request is waiting for the load, it is cancelled:
+         * loads that are still queued are skipped by the stage, running
+         * loads stop before downloading.
+         */
+        public void cancel() {
+            synchronized (inFlight) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                load.removeRequest(this);
+            }
+        }
+
+        /**
+         * True if cancelled or the load is finished.
+         * 
+         * @return boolean
+         */
+        public boolean isDone() {
+            synchronized (inFlight) {
+                return cancelled || load.isDone();
+            }
+        }
+    }
+
+    /**
+     * A queued or running thumbnail load with all its requests.
+     * 
+     * The future is never run itself, the stage tasks of the
+     * pipeline pass it on and finally complete it.
+     */
+    private class ThumbnailLoad extends FutureTask<Bitmap> {
+
+        /**
+         * The item the thumbnail is loaded for.
+         */
+        private final Item item;
+
+        /**
+         * Requests waiting for the load, guarded by inFlight.
+         */
+        private final List<ThumbnailRequest> requests;
+
+        /**
+         * Highest priority any request asked for, guarded by inFlight.
+         */
+        private int priority;
+
+        /**
+         * The stage the load is currently queued in or running on.
+         */
+        private PriorityExecutor stage;
+
+        /**
+         * The task of the current stage.
+         */
+        private StageTask stageTask;
+
+        /**
+         * Constructs the load of the item thumbnail.
+         * 
+         * @param item
+         */
+        public ThumbnailLoad(Item item) {
+            super(new Runnable() {
+                public void run() {}
+            }, null);
+            this.item = item;
+            requests = new ArrayList<ThumbnailRequest>(1);
+        }
+
+        /**
+         * Attach a new request, must hold the inFlight lock.
+         * 
+         * @param listener (may be null)
+         * @return the request
+         */
+        public ThumbnailRequest addRequest(LoadedThumbnailListener listener) {
+            ThumbnailRequest request = new ThumbnailRequest(this, listener);
+            requests.add(request);
+            return request;
+        }
+
+        /**
+         * Detach a request, must hold the inFlight lock.
+         * 
+         * Cancels the load if it was the last request.
+         * 
+         * @param request
+         */
+        public void removeRequest(ThumbnailRequest request) {
+            requests.remove(request);
+            if (requests.isEmpty()) {
+                cancel(false); // the stage skips (and purges) its task
+            }
+        }
+
+        /**
+         * Queue the load in the next stage of the pipeline.
+         * 
+         * @param stage
+         * @param task
+         */
+        public void enqueue(PriorityExecutor stage, StageTask task) {
+            int priority;
+            synchronized (inFlight) {
+                this.stage = stage;
+                stageTask = task;
+                priority = this.priority;
+            }
+            stage.execute(task, priority);
+        }
+
+        /**
+         * Finish the load with the bitmap (or null on error).
+         * 
+         * @param bitmap
+         */
+        public void complete(Bitmap bitmap) {
+            set(bitmap);
+        }
+
+        /**
+         * Cancel the load, it was dropped from a full stage queue.
+         */
+        public void drop() {
+            Log.v(TAG, "load dropped from full queue: " + String.valueOf(item.getId()));
+            cancel(false);
+        }
+
+        @Override
+        protected void done() {
+            List<ThumbnailRequest> notify;
+            boolean visible;
+            synchronized (inFlight) {
+                if (inFlight.get(item.getId()) == this) {
+                    inFlight.remove(item.getId());
+                }
+                notify = new ArrayList<ThumbnailRequest>(requests);
+                visible = priority == PriorityExecutor.PRIORITY_VISIBLE;
+            }
+            if (isCancelled()) {
+                return;
+            }
+
+            long loadedAt = pageLoadedAt;
+            if (visible && loadedAt != 0) {
+                pageLoadedAt = 0;
+                Log.d(TAG, "first visible thumbnail after page load in " + 
+                        String.valueOf(SystemClock.uptimeMillis() - loadedAt) + "ms");
+            }
+
+            Bitmap bitmap = null;
+            try {
+                bitmap = get();
+            }
+            catch (Exception e) {
+                Log.e(TAG, "unable to load thumbnail of " + String.valueOf(item.getId()));
+                e.printStackTrace();
+            }
+            for (ThumbnailRequest request : notify) {
+                if (request.listener != null) {
+                    request.listener.onLoadedThumbnail(item.getId(), bitmap);
+                }
+            }
+        }
+    }
+
+    /**
+     * Work of a load within one stage of the pipeline.
+     */
+    private abstract class StageTask implements PriorityExecutor.CancellableTask {
+
+        /**
+         * The load this task works on.
+         */
+        protected final ThumbnailLoad load;
+
+        /**
+         * Constructs the task.
+         * 
+         * @param load
+         */
+        public StageTask(ThumbnailLoad load) {
+            this.load = load;
+        }
+
+        public boolean isCancelled() {
+            return load.isCancelled();
+        }
+
+        public void run() {
+            if (load.isCancelled()) {
+                return;
+            }
+            try {
+                process(load.item);
+            }
+            catch (RuntimeException e) {
+                Log.e(TAG, "unable to load thumbnail of " + String.valueOf(load.item.getId()));
+                e.printStackTrace();
+                load.complete(null);
+            }
+        }
+
+        /**
+         * Process the item, then complete or enqueue the load.
+         * 
+         * @param item
+         */
+        protected abstract void process(Item item);
+    }
+
+    /**
+     * Disk stage: looks into the caches, passes misses to the network stage.
+     */
+    private class DiskReadTask extends StageTask {
+
+        public DiskReadTask(ThumbnailLoad load) {
+            super(load);
+        }
+
+        @Override
+        protected void process(Item item) {
+            if (item.getImage() == null) {
+                Log.w(TAG, "tried to load item without image");
+                load.complete(null);
+                return;
+            }
+            Bitmap bitmap = getCachedBitmap(item);
+            if (bitmap != null) {
+                load.complete(bitmap);
+            }
+            else {
+                load.enqueue(networkStage, new DownloadTask(load));
+            }
+        }
+    }
+
+    /**
+     * Network stage: downloads the thumbnail, the disk cache is 
+     * written in the writer stage.
+     */
+    private class DownloadTask extends StageTask {
+
+        public DownloadTask(ThumbnailLoad load) {
+            super(load);
+        }
+
+        @Override
+        protected void process(Item item) {
+            load.complete(downloadBitmap(item));
+        }
+    }
+
+    /**
+     * Writer stage: stores a downloaded thumbnail in the disk cache.
+     */
+    private class DiskWriteTask implements Runnable {
+
+        /**
+         * The item of the thumbnail.
+         */
+        private final Item item;
+
+        /**
+         * The downloaded (encoded) thumbnail.
+         */
+        private final byte[] data;
+
+        /**
+         * Constructs the write task.
+         * 
+         * @param item
+         * @param data
+         */
+        public DiskWriteTask(Item item, byte[] data) {
+            this.item = item;
+            this.data = data;
+        }
+
+        public void run() {
+            saveToDiskCache(item, data);
+            contentIndex.flush();
+        }
+    }
+
+    /**
+     * True if the preview of the item is in memory.
+     * 
+     * @param item
+     * @return boolean
+     */
+    public boolean isPreviewCached(Item item) {
+        return loadFromPreviewCache(item) != null;
+    }
+
+    /**
+     * Return the preview of the item from memory.
+     * 
+     * @param item
+     * @return Bitmap or null
+     */
+    public Bitmap loadFromPreviewCache(Item item) {
+        synchronized (previewCache) {
+            return previewCache.get(item.getId());
+        }
+    }
+
+    /**
+     * Loads the medium resolution preview of an image item.
+     * 
+     * The preview is decoded from the full image while it is
+     * downloaded, subsampled to fit the item detail view, and stored
+     * in its own memory and disk cache, so the detail view doesn't
+     * have to upscale the gallery thumbnail. Loads of the same item are shared. The listener is
+     * called with null if the item has no preview (videos).
+     * 
+     * @param item
+     * @param loadedListener called with the bitmap (may be null)
+     */
+    public void loadPreview(Item item, LoadedThumbnailListener loadedListener) {
+        loadPreview(item, loadedListener, PriorityExecutor.PRIORITY_VISIBLE, true);
+    }
+
+    /**
+     * Loads the preview of an item the user is likely to open next.
+     * 
+     * The full image is only downloaded on wifi, on metered (or
+     * unknown) networks the preview is only loaded from the disk
+     * cache.
+     * 
+     * @param item
+     */
+    public void prefetchPreview(Item item) {
+        loadPreview(item, null, PriorityExecutor.PRIORITY_PREFETCH, isUnmeteredNetwork());
+    }
+
+    /**
+     * True if the active network is wifi, the others are treated as
+     * metered.
+     * 
+     * @return boolean
+     */
+    private boolean isUnmeteredNetwork() {
+        NetworkInfo network = connectivityManager != null ? 
+                connectivityManager.getActiveNetworkInfo() : null;
+        return network != null && network.isConnected() && 
+                network.getType() == ConnectivityManager.TYPE_WIFI;
+    }
+
+    /**
+     * Loads the medium resolution preview of an image item.
+     * 
+     * @param item
+     * @param loadedListener called with the bitmap (may be null)
+     * @param priority PriorityExecutor.PRIORITY_VISIBLE or PRIORITY_PREFETCH
+     * @param download false to only load from the disk cache
+     */
+    private void loadPreview(Item item, LoadedThumbnailListener loadedListener, 
+            int priority, boolean download) {
+        Bitmap bitmap = loadFromPreviewCache(item);
+        if (bitmap != null || item.getType() != Type.IMAGE || 
+                item.getImage() == null || item.getImage().getImageUrl() == null) {
+            if (loadedListener != null) {
+                loadedListener.onLoadedThumbnail(item.getId(), bitmap);
+            }
+            return;
+        }
+        synchronized (inFlightPreviews) {
+            List<LoadedThumbnailListener> listeners = inFlightPreviews.get(item.getId());
+            if (listeners != null) {
+                if (loadedListener != null) {
+                    listeners.add(loadedListener);
+                }
+                return;
+            }
+            listeners = new ArrayList<LoadedThumbnailListener>();
+            if (loadedListener != null) {
+                listeners.add(loadedListener);
+            }
+            inFlightPreviews.put(item.getId(), listeners);
+        }
+        diskStage.execute(new PreviewTask(item, priority, download), priority);
+    }
+
+    /**
+     * Store the loaded preview and inform the listeners.
+     * 
+     * @param item
+     * @param bitmap or null if the preview could not be loaded
+     */
+    private void completePreview(Item item, Bitmap bitmap) {
+        if (bitmap != null) {
+            synchronized (previewCache) {
+                previewCache.put(item.getId(), bitmap);
+            }
+        }
+        List<LoadedThumbnailListener> listeners;
+        synchronized (inFlightPreviews) {
+            listeners = inFlightPreviews.remove(item.getId());
+        }
+        if (listeners != null) {
+            for (LoadedThumbnailListener listener : listeners) {
+                listener.onLoadedThumbnail(item.getId(), bitmap);
+            }
+        }
+    }
+
+    /**
+     * Loads a preview from the disk cache (disk stage) or the web
+     * (network stage).
+     */
+    private class PreviewTask implements Runnable {
+
+        /**
+         * The item of the preview.
+         */
+        private final Item item;
+
+        /**
+         * Priority of the load in both stages.
+         */
+        private final int priority;
+
+        /**
+         * False if the preview may only be loaded from the disk cache.
+         */
+        private final boolean downloadAllowed;
+
+        /**
+         * Set once the disk cache missed, the task is then run by
+         * the network stage.
+         */
+        private boolean download = false;
+
+        /**
+         * Constructs the preview task.
+         * 
+         * @param item
+         * @param priority
+         * @param downloadAllowed false to only load from the disk cache
+         */
+        public PreviewTask(Item item, int priority, boolean downloadAllowed) {
+            this.item = item;
+            this.priority = priority;
+            this.downloadAllowed = downloadAllowed;
+        }
+
+        public void run() {
+            Bitmap bitmap = null;
+            try {
+                if (!download) {
+                    bitmap = loadPreviewFromDiskCache(item);
+                    if (bitmap == null && downloadAllowed) {
+                        download = true;
+                        networkStage.execute(this, priority);
+                        return;
+                    }
+                }
+                else {
+                    bitmap = downloadPreview(item);
+                }
+            }
+            catch (RuntimeException e) {
+                Log.e(TAG, "unable to load preview of " + String.valueOf(item.getId()), e);
+            }
+            completePreview(item, bitmap);
+        }
+    }
+
+    /**
+     * Decode the preview from the disk cache.
+     * 
+     * @param item
+     * @return bitmap or null if not cached
+     */
+    private Bitmap loadPreviewFromDiskCache(Item item) {
+        File file = getPreviewCacheFile(item);
+        if (!file.exists()) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = decodeConfig;
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (bitmap == null) {
+            Log.w(TAG, "unable to decode cached preview, delete: " + file.getName());
+            file.delete();
+        }
+        return bitmap;
+    }
+
+    /**
+     * Download the full image and decode it subsampled to the
+     * preview size, the preview is stored in the disk cache.
+     * 
+     * The image is never held in memory, it is decoded while it is
+     * downloaded.
+     * 
+     * @param item
+     * @return bitmap or null
+     */
+    private Bitmap downloadPreview(final Item item) {
+        Bitmap decoded = decodeFromWeb(item.getImage().getImageUrl(), previewSize);
+        if (decoded == null) {
+            Log.e(TAG, "unable to decode preview of " + String.valueOf(item.getId()));
+            return null;
+        }
+
+        // scale down to fit, keeping the aspect ratio
+        float scale = Math.min(1f, (float) previewSize / 
+                Math.max(decoded.getWidth(), decoded.getHeight()));
+        final Bitmap bitmap;
+        if (scale < 1f) {
+            bitmap = Bitmap.createScaledBitmap(decoded, 
+                    Math.max(1, (int) (decoded.getWidth() * scale)),
+                    Math.max(1, (int) (decoded.getHeight() * scale)), true);
+            decoded.recycle();
+        }
+        else {
+            bitmap = decoded;
+        }
+
+        writerStage.execute(new Runnable() {
+            public void run() {
+                savePreviewToDiskCache(item, bitmap);
+            }
+        });
+        return bitmap;
+    }
+
+    /**
+     * Store the preview in the disk cache.
+     * 
+     * @param item
+     * @param bitmap
      */
-    private LruCache<Integer, Bitmap> memCache = null;
+    private void savePreviewToDiskCache(Item item, Bitmap bitmap) {
+        File file = getPreviewCacheFile(item);
+        File partial = getPartialFile(file);
+        try {
+            FileOutputStream out = new FileOutputStream(partial);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, 85, out);
+            }
+            finally {
+                out.close();
+            }
+            if (!partial.renameTo(file)) {
+                throw new IOException("rename failed");
+            }
+        }
+        catch (Exception e) {
+            Log.e(TAG, "unable to store preview: " + file.getName());
+            partial.delete();
+        }
+    }
 
     /**
-     * Disk cache, points to sdcard application cache.
+     * Return the file a cache file is written to first.
+     * 
+     * It is renamed once complete, so readers never see a partial
+     * file, not even after a crash.
+     * 
+     * @param file in the disk cache
+     * @return partial file
      */
-    private File diskCache;
+    private File getPartialFile(File file) {
+        return new File(file.getPath() + DiskCacheIndex.PARTIAL_SUFFIX);
+    }
 
     /**
-     * Thread Pool for downloading thumbnail images.
+     * Return the disk cache file of the preview.
+     * 
+     * @param item
+     * @return file
      */
-    private ExecutorService pool;
+    private File getPreviewCacheFile(Item item) {
+        return new File(diskCache, PREVIEW_CACHE_PREFIX + String.valueOf(item.getId()) + 
+                DISK_CACHE_SUFFIX);
+    }
     
     /**
-     * The bitmap to overlay video thumbnails with.
+     * Retrieve thumbnail bitmap from memory, raw or disk cache.
+     * 
+     * @param item
+     * @return bitmap instance or null if not cached
      */
-    private Bitmap videoOverlayBitmap;
-    
+    private Bitmap getCachedBitmap(Item item) {
+        Bitmap bitmap = loadFromMemCache(item);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        bitmap = loadFromRawCache(item);
+        if (bitmap != null) {
+            saveToMemCache(item, bitmap);
+            return bitmap;
+        }
+
+        if (!isDiskCached(item)) {
+            return null;
+        }
+        bitmap = loadFromDiskCache(item);
+        if (bitmap == null) {
+            return null; // the cached file was unreadable
+        }
+        savePlaceholder(item, bitmap);
+        
+        saveToMemCache(item, bitmap);
+        return bitmap;
+    }
+
     /**
-     * Zeitgeist Java API instance.
+     * Download the thumbnail and store it in the caches.
+     * 
+     * Returns as soon as the thumbnail is decoded, the disk cache
+     * is written in the writer stage.
+     * 
+     * @param item
+     * @return bitmap instance or null on error
      */
-    private ZeitgeistApi api;
-  
+    private Bitmap downloadBitmap(Item item) {
+        byte[] data = loadFromWeb(item);
+        if (data == null) {
+            return null;
+        }
+
+        // a repost of a known thumbnail shares the cached one
+        int contentId = contentIndex.register(item.getId(), ContentIndex.hash(data));
+        scheduleContentIndexFlush();
+        if (contentId != item.getId()) {
+            Bitmap cached = loadFromMemCache(item);
+            if (cached != null) {
+                savePlaceholder(item, cached);
+                return cached;
+            }
+        }
+        boolean stored = isDiskCached(item);
+
+        int size = thumbnailSize;
+        BitmapFactory.Options options = getDecodeOptions(size);
+        if (options.inJustDecodeBounds) {
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            setSampleSize(options, size);
+        }
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (bitmap == null) {
+            Log.e(TAG, "bitmap from web is null!");
+            return null;
+        }
+
+        // the encoded thumbnail is stored as downloaded, once per content
+        if (!stored) {
+            writerStage.execute(new DiskWriteTask(item, data));
+        }
+
+        bitmap = scaleToSize(bitmap, size);
+        savePlaceholder(item, bitmap);
+        saveToMemCache(item, bitmap);
+        return bitmap;
+    }
+
     /**
-     * Constructs the thumbnail loader.
-     *
-     * This starts the thread pool, initializes the memory cache,
-     * and creates the directories for the disk-cache (if necessary).
+     * Return decode options for the thumbnail size.
      * 
-     * @param context of the gallery service.
+     * If the size is known the options are set up to probe the
+     * bounds of the image first. Images with alpha are decoded
+     * in ARGB_8888 regardless of the preferred configuration.
+     * 
+     * @param size of the thumbnail or 0
+     * @return options
      */
-    public ThumbnailWorker(Context context) {
-        Log.v(TAG, "constructed");
-        
-        api = ZeitgeistApiFactory.createInstance(context);
-        
-        // start thread pool
-        pool = Executors.newFixedThreadPool(THREADS);
-
-        
-        // initialize memory cache
-        /*
-        
-         TODO: somehow that doesn't work at all, why?
-        
-            int memCacheSize = 2 * 1024 * 1024; // 2 MiB
-            memCache = new LruCache<Integer, Bitmap>(memCacheSize) {
-                protected int sizeOf(Integer key, Bitmap value) {
-                    return value.getRowBytes() * value.getHeight();
-                }
-            };
-        
-        */
-        // 150 * ~16 KiB = 2250 KiB
-        memCache = new LruCache<Integer, Bitmap>(150); 
+    private BitmapFactory.Options getDecodeOptions(int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = decodeConfig;
+        options.inJustDecodeBounds = size > 0;
+        return options;
+    }
 
-        // create disk cache directory
-        File externalStorageDirectory = context.getExternalFilesDir(null);
-        diskCache = new File(externalStorageDirectory, "cache");
-        if (!diskCache.exists()) {
-            diskCache.mkdirs();
+    /**
+     * Set the sample size after probing the bounds of the image.
+     * 
+     * Chooses the largest power of two that keeps the shorter side
+     * at least as large as the thumbnail size.
+     * 
+     * @param options with outWidth and outHeight from probing
+     * @param size of the thumbnail
+     */
+    private void setSampleSize(BitmapFactory.Options options, int size) {
+        int shorter = Math.min(options.outWidth, options.outHeight);
+        int sampleSize = 1;
+        while (shorter / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
         }
-        Log.d(TAG, "disk cache: " + diskCache.getAbsolutePath());
+        options.inSampleSize = sampleSize;
+        options.inJustDecodeBounds = false;
+    }
 
-        // load video overlay bitmap
-        videoOverlayBitmap = BitmapFactory.decodeResource(
-                context.getResources(), R.drawable.video_overlay);
+    /**
+     * Scale and center crop the bitmap to exactly the thumbnail size.
+     * 
+     * This is what the gallery ImageView would otherwise do on every
+     * draw. The original bitmap is recycled.
+     * 
+     * @param bitmap decoded (subsampled) bitmap
+     * @param size of the thumbnail or 0 to keep the bitmap
+     * @return square bitmap of the size
+     */
+    private Bitmap scaleToSize(Bitmap bitmap, int size) {
+        if (size <= 0 || (bitmap.getWidth() == size && bitmap.getHeight() == size)) {
+            return bitmap;
+        }
+        Bitmap.Config config = bitmap.getConfig();
+        Bitmap scaled = Bitmap.createBitmap(size, size, 
+                config != null ? config : Bitmap.Config.ARGB_8888);
+        float scale = Math.max((float) size / bitmap.getWidth(),
+                (float) size / bitmap.getHeight());
+        Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        matrix.postTranslate((size - bitmap.getWidth() * scale) / 2f,
+                (size - bitmap.getHeight() * scale) / 2f);
+        new Canvas(scaled).drawBitmap(bitmap, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        bitmap.recycle();
+        return scaled;
     }
 
     /**
-     * Loads thumbnail bitmap from disk or web.
-     *
-     * @param item api item object
-     * @param loadedListener called with the bitmap
+     * Return a drawable to display the thumbnail of the item.
+     * 
+     * Videos get the video overlay (play icon) drawn on top, at
+     * draw time, the cached thumbnail is left untouched.
+     * 
+     * @param item
+     * @param bitmap thumbnail of the item
+     * @return drawable
      */
-    public void loadThumbnail(final Item item, 
-      final LoadedThumbnailListener loadedListener) {
-        pool.submit(new Runnable() {
-            public void run() {
-                Bitmap bitmap = getBitmapByItem(item);
-                loadedListener.onLoadedThumbnail(item.getId(), bitmap);
-            }
-        });
+    public Drawable getThumbnailDrawable(Item item, Bitmap bitmap) {
+        if (item.getType() == Type.VIDEO) {
+            return new OverlayBitmapDrawable(resources, bitmap, videoOverlayBitmap);
+        }
+        return new BitmapDrawable(resources, bitmap);
     }
-    
 
     /**
-     * Retrieve thumbnail bitmap from cache or web return.
+     * Return a drawable of the placeholder preview of the item.
+     * 
+     * The few colors of the placeholder are scaled up with filtering
+     * to a blurred impression of the thumbnail, it can be shown as
+     * soon as the cell is bound.
      * 
      * @param item
-     * @return bitmap instance
+     * @return drawable or null if there is no placeholder yet
      */
-    public Bitmap getBitmapByItem(Item item) {
-        if (item.getImage() == null) {
-            Log.w(TAG, "tried to load item without image");
+    public Drawable getPlaceholderDrawable(Item item) {
+        byte[] placeholder = itemWorker.getPlaceholder(item.getId());
+        if (placeholder == null) {
             return null;
         }
+        return createPlaceholderDrawable(resources, placeholder);
+    }
 
-        Bitmap bitmap = null;
-        if (isMemCached(item)) {
-            bitmap = loadFromMemCache(item);
-        }
-        else {
-            if (isDiskCached(item)) {
-                bitmap = loadFromDiskCache(item);
-            }
-            else {
-                bitmap = loadFromWeb(item);
-                if (bitmap == null) {
-                	Log.e(TAG, "bitmap from web is null!");
-                	return null;
-                }
-                saveToDiskCache(item, bitmap);
-            }
-            
-            // draws the video overlay into the bitmap (if the item is a video)
-            if (item.getType() == Type.VIDEO) {
-                bitmap = drawVideoOverlay(bitmap);
-            }
-            
-            saveToMemCache(item, bitmap);
+    /**
+     * Create the drawable of an encoded placeholder.
+     * 
+     * Used without the workers for the first screen of the gallery.
+     * 
+     * @param resources
+     * @param placeholder grid of colors, encoded RGB
+     * @return drawable
+     */
+    public static Drawable createPlaceholderDrawable(Resources resources, byte[] placeholder) {
+        int[] colors = new int[PLACEHOLDER_GRID * PLACEHOLDER_GRID];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = 0xff000000 | 
+                    (placeholder[i * 3] & 0xff) << 16 |
+                    (placeholder[i * 3 + 1] & 0xff) << 8 |
+                    (placeholder[i * 3 + 2] & 0xff);
         }
-        
-        return bitmap;
+        Bitmap bitmap = Bitmap.createBitmap(colors, 
+                PLACEHOLDER_GRID, PLACEHOLDER_GRID, Bitmap.Config.ARGB_8888);
+        BitmapDrawable drawable = new BitmapDrawable(resources, bitmap);
+        drawable.setFilterBitmap(true);
+        return drawable;
     }
 
     /**
-     * Draw the video overlay (play icon) on top of the bitmap.
+     * Compute the placeholder preview of a loaded thumbnail and
+     * store it with the item, once.
+     * 
+     * The placeholder is a grid of colors, encoded RGB (48 bytes).
      * 
-     * @param bitmap to draw bitmap on.
-     * @return bitmap instance with the overlay on it.
+     * @param item
+     * @param bitmap the loaded thumbnail
      */
-    private Bitmap drawVideoOverlay(Bitmap bitmap) {
-        return drawBitmapOverlay(bitmap, videoOverlayBitmap);
+    private void savePlaceholder(Item item, Bitmap bitmap) {
+        if (itemWorker.hasPlaceholder(item.getId())) {
+            return;
+        }
+        Bitmap grid = Bitmap.createScaledBitmap(bitmap, 
+                PLACEHOLDER_GRID, PLACEHOLDER_GRID, true);
+        int[] colors = new int[PLACEHOLDER_GRID * PLACEHOLDER_GRID];
+        grid.getPixels(colors, 0, PLACEHOLDER_GRID, 0, 0, PLACEHOLDER_GRID, PLACEHOLDER_GRID);
+        if (grid != bitmap) {
+            grid.recycle();
+        }
+        byte[] placeholder = new byte[colors.length * 3];
+        for (int i = 0; i < colors.length; i++) {
+            placeholder[i * 3] = (byte) (colors[i] >> 16);
+            placeholder[i * 3 + 1] = (byte) (colors[i] >> 8);
+            placeholder[i * 3 + 2] = (byte) colors[i];
+        }
+        itemWorker.setPlaceholder(item.getId(), placeholder);
     }
-    
+
     /**
-     * Draw overlay on a bitmap.
-     * 
-     * @param bitmap
-     * @param overlay
-     * @return new bitmap
+     * Copy the thumbnail pixels from the raw pixel cache into a
+     * new bitmap.
+     *
+     * The bitmap is never reused: evicted thumbnails may still be
+     * drawn by a cell, the video overlay or the detail view, there
+     * is no point where they are known to be unreferenced.
+     *
+     * @param item
+     * @return bitmap or null if not cached
      */
-    private Bitmap drawBitmapOverlay(Bitmap bitmap, Bitmap overlay) {
-        // create plain empty bitmap
-        Bitmap plainBitmap = Bitmap.createBitmap(
-                bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
-        
-        // canvas to draw on it
-        Canvas canvas = new Canvas(plainBitmap);
-        
-        // draw the bitmap then the overlay
-        canvas.drawBitmap(bitmap, new Matrix(), null);
-        canvas.drawBitmap(overlay, new Matrix(), null);
-        
-        // recycle the original bitmap
-        bitmap.recycle();
-        
-        return plainBitmap;
+    private Bitmap loadFromRawCache(Item item) {
+        int cellSize = rawCache.getCellSize();
+        if (cellSize == 0 || decodeConfig != Bitmap.Config.RGB_565 
+                || !rawCache.contains(getContentId(item))) {
+            return null;
+        }
+        Bitmap bitmap = Bitmap.createBitmap(cellSize, cellSize, Bitmap.Config.RGB_565);
+        if (!rawCache.get(getContentId(item), bitmap)) {
+            bitmap.recycle();
+            return null;
+        }
+        return bitmap;
     }
 
     /**
      * True if the thumbnail bitmap exists on the sdcard cache.
      * 
+     * Only asks the in-memory index, waits for the initial scan
+     * of the cache directory if necessary.
+     * 
      * @param item
      * @return boolean
      */
     private boolean isDiskCached(Item item) {
-        return getDiskCacheFile(item).exists();
+        diskCacheIndex.awaitReady();
+        return diskCacheIndex.contains(getContentId(item));
     }
 
     /**
@@ -247,43 +1485,91 @@ public class ThumbnailWorker implements UpdatedItemsListener {
      * @return file instance.
      */
     private File getDiskCacheFile(Item item) {
-        return new File(diskCache, String.format("thumb_%d.jpg", item.getId()));
+        return new File(diskCache,
+                DISK_CACHE_PREFIX + String.valueOf(getContentId(item)) + DISK_CACHE_SUFFIX);
     }
     
     /**
      * Loads the bitmap from the sdcard into a Bitmap instance and return.
      * 
+     * The bitmap is subsampled and scaled to the thumbnail size.
+     * 
      * @param item
      * @return newly loaded Bitmap instance.
      */
     private Bitmap loadFromDiskCache(Item item) {
         Log.v(TAG, "load from disk cache");
         File file = getDiskCacheFile(item);
-        return BitmapFactory.decodeFile(file.getAbsolutePath());
+        int size = thumbnailSize;
+        BitmapFactory.Options options = getDecodeOptions(size);
+        if (options.inJustDecodeBounds) {
+            BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+            setSampleSize(options, size);
+        }
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (bitmap == null) {
+            Log.w(TAG, "unable to decode cached thumbnail, evict: " + file.getName());
+            evictFromDiskCache(item);
+            return null;
+        }
+        return scaleToSize(bitmap, size);
     }
 
     /**
-     * Store item thumbnail bitmap instance to disk cache.
+     * Remove the thumbnail of an item from the disk cache.
      * 
      * @param item
-     * @param bitmap
      */
-    private void saveToDiskCache(Item item, Bitmap bitmap) {
+    private void evictFromDiskCache(Item item) {
+        int contentId = getContentId(item);
+        diskCacheIndex.remove(contentId);
+        getDiskCacheFile(item).delete();
+        contentIndex.evict(contentId);
+        scheduleContentIndexFlush();
+    }
+
+    /**
+     * Write the changes of the content index in the writer stage.
+     */
+    private void scheduleContentIndexFlush() {
+        if (contentIndex.scheduleFlush()) {
+            writerStage.execute(new Runnable() {
+                public void run() {
+                    contentIndex.flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * Store the encoded item thumbnail to disk cache.
+     * 
+     * @param item
+     * @param data as downloaded
+     */
+    private void saveToDiskCache(Item item, byte[] data) {
         Log.v(TAG, "save to disk cache");
         File file = getDiskCacheFile(item);
+        File partial = getPartialFile(file);
 
-        // cache bitmap on disk
+        // cache thumbnail on disk, visible under its name once complete
         try {
-            FileOutputStream out = new FileOutputStream(file);
+            FileOutputStream out = new FileOutputStream(partial);
             try {
-                bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+                out.write(data);
             }
             finally {
                 out.close();
             }
+            if (!partial.renameTo(file)) {
+                throw new IOException("rename failed: " + partial.getName());
+            }
+            diskCacheIndex.add(getContentId(item));
         }
         catch (Exception e) {
             e.printStackTrace();
+            partial.delete();
+            evictFromDiskCache(item);
         }
     }
 
@@ -294,9 +1580,12 @@ public class ThumbnailWorker implements UpdatedItemsListener {
      * @return boolean
      */
     public boolean isMemCached(Item item) {
+        if (!diskCacheIndex.isReady()) {
+            return false; // nothing is loaded before the indices
+        }
         Bitmap bitmap = null;
         synchronized (memCache) {
-            bitmap = memCache.get(item.getId());
+            bitmap = memCache.get(getMemCacheKey(getContentId(item), thumbnailSize));
         }
         return bitmap != null;
     }
@@ -309,9 +1598,12 @@ public class ThumbnailWorker implements UpdatedItemsListener {
      */
     public Bitmap loadFromMemCache(Item item) {
      // Log.v(TAG, "load from memory cache");
+        if (!diskCacheIndex.isReady()) {
+            return null; // nothing is loaded before the indices
+        }
         Bitmap bitmap = null;
         synchronized (memCache) {
-            bitmap = memCache.get(item.getId());
+            bitmap = memCache.get(getMemCacheKey(getContentId(item), thumbnailSize));
         }
         return bitmap;
     }
@@ -326,45 +1618,192 @@ public class ThumbnailWorker implements UpdatedItemsListener {
     	// Log.v(TAG, "save to memory cache");
         synchronized (memCache) {
             // put in in-memory cache
-            memCache.put(item.getId(), bitmap);
+            memCache.put(getMemCacheKey(getContentId(item), thumbnailSize), bitmap);
+        }
+    }
+
+    /**
+     * Return the number of thumbnails of the current size that fit
+     * into the memory cache.
+     * 
+     * @return number of thumbnails, 0 if the size is unknown
+     */
+    public int getMemCacheCapacity() {
+        int size = thumbnailSize;
+        if (size <= 0) {
+            return 0;
         }
+        int bytesPerPixel = decodeConfig == Bitmap.Config.RGB_565 ? 2 : 4;
+        return memCache.maxSize() / (size * size * bytesPerPixel);
+    }
+
+    /**
+     * Return the id the thumbnail of the item is cached under.
+     * 
+     * Waits for the content index to be loaded, like isDiskCached
+     * waits for the scan of the disk cache.
+     * 
+     * @param item
+     * @return content id
+     * @see ContentIndex
+     */
+    private int getContentId(Item item) {
+        diskCacheIndex.awaitReady();
+        return contentIndex.resolve(item.getId());
+    }
+
+    /**
+     * Return the memory cache key of a thumbnail.
+     * 
+     * @param id of the item
+     * @param size of the thumbnail
+     * @return key
+     */
+    private static long getMemCacheKey(int id, int size) {
+        return ((long) size << 32) | (id & 0xffffffffL);
     }
 
     /**
      * Loads an thumbnail image of an item.
      *
+     * The latency and errors are reported to the download limiter.
+     *
      * @param item
-     * @return bitmap
+     * @return encoded thumbnail or null
+     */
+    private byte[] loadFromWeb(Item item) {
+        return loadFromWeb(api.getBaseUrl() + item.getImage().getThumbnail(), true);
+    }
+
+    /**
+     * Decodes an image while it is downloaded, without buffering it.
+     * 
+     * The image is subsampled while its longer side stays larger
+     * than minSize. The bounds are probed on the same connection:
+     * the stream is marked, the header decoded and the stream reset.
+     * Only headers larger than the mark cost a second request.
+     * 
+     * @param url
+     * @param minSize smallest longer side of the decoded bitmap
+     * @return bitmap or null
+     */
+    private Bitmap decodeFromWeb(String url, int minSize) {
+        Log.d(TAG, "decode from web " + url);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = decodeConfig;
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(openFromWeb(url), 16 * 1024);
+            in.mark(BOUNDS_MARK_LIMIT);
+
+            // the decoder sets its own (small) mark on the stream it
+            // reads, so it gets a buffer of its own inside ours
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(new BufferedInputStream(in, 16 * 1024), null, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                Log.e(TAG, "unable to decode bounds: " + url);
+                return null;
+            }
+            try {
+                in.reset();
+            } catch (IOException e) {
+                Log.w(TAG, "header larger than the mark, download again: " + url);
+                in.close();
+                in = new BufferedInputStream(openFromWeb(url), 16 * 1024);
+            }
+
+            int longer = Math.max(options.outWidth, options.outHeight);
+            int sampleSize = 1;
+            while (longer / (sampleSize * 2) >= minSize) {
+                sampleSize *= 2;
+            }
+            options.inSampleSize = sampleSize;
+            options.inJustDecodeBounds = false;
+            return BitmapFactory.decodeStream(in, null, options);
+        } catch (IOException e) {
+            Log.e(TAG, "unable to download: " + url);
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+
+    /**
+     * Opens a connection with the download timeouts.
+     * 
+     * @param url
+     * @return response stream
+     * @throws IOException
+     */
+    private InputStream openFromWeb(String url) throws IOException {
+        URLConnection connection = new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        return connection.getInputStream();
+    }
+
+    /**
+     * Downloads a file into memory.
+     *
+     * @param url
+     * @param limited report to the download limiter (thumbnails only,
+     *   larger files would distort the latency baseline)
+     * @return content or null
      */
-    private Bitmap loadFromWeb(Item item) {
-        String url = api.getBaseUrl() + item.getImage().getThumbnail();
+    private byte[] loadFromWeb(String url, boolean limited) {
         Log.d(TAG, "load from web " + url);
-        Bitmap bitmap = null;
+        byte[] data = null;
         InputStream in = null;
+        long startedAt = SystemClock.uptimeMillis();
         try {
         	try {
-            	in = (InputStream)(new URL(url).getContent());
-                bitmap = BitmapFactory.decodeStream(in);        		
+        	    URLConnection connection = new URL(url).openConnection();
+        	    connection.setConnectTimeout(CONNECT_TIMEOUT);
+        	    connection.setReadTimeout(READ_TIMEOUT);
+            	in = connection.getInputStream();
+            	
+            	// buffered, the bounds are probed before decoding
+            	ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+            	byte[] buffer = new byte[4096];
+            	int read;
+            	while ((read = in.read(buffer)) != -1) {
+            	    out.write(buffer, 0, read);
+            	}
+            	data = out.toByteArray();
         	}
         	finally {
         		if (in != null) {
                     in.close();
         		}
         	}
+            if (limited) {
+                downloadLimiter.onSuccess(SystemClock.uptimeMillis() - startedAt);
+            }
 
         } catch (Exception e) {
-            Log.e(TAG, "unable to download thumbnail: " + url);
+            Log.e(TAG, "unable to download: " + url);
             e.printStackTrace();
+            if (limited) {
+                downloadLimiter.onError();
+            }
         }
-        return bitmap;
+        return data;
     }
 
 	@Override
 	public void onUpdatedItems(List<Item> newItemsList) {
-	    // load the thumbnails prematurely if new items are loaded.
+	    // load the thumbnails prematurely if new items are loaded,
+	    // the visible thumbnails are loaded first anyway.
 	    if (newItemsList != null) {
+	        logStageMetrics();
+	        pageLoadedAt = SystemClock.uptimeMillis();
 	        for (Item item : newItemsList) {
-	            loadThumbnail(item, null);
+	            loadThumbnail(item, null, PriorityExecutor.PRIORITY_PREFETCH);
 	        }	        
 	    }
 	}
@@ -374,10 +1813,104 @@ public class ThumbnailWorker implements UpdatedItemsListener {
     }
 
     /**
-     * Stops running downloads and shuts down the thread pool.
+     * Release memory according to the trim level.
+     *
+     * The memory cache shrinks progressively with the level, from
+     * three quarters while running to nothing in the background.
+     * When the UI is hidden it shrinks to half (the level is above
+     * the running ones, but the device is not low on memory).
+     * Thumbnails removed while the process is still kept alive are
+     * moved to the raw pixel cache, which is not on the heap. Under
+     * higher pressure the raw pixel cache itself is dropped, until
+     * the gallery sets the size again.
+     * The previews are dropped when running critically low or the
+     * UI is hidden.
+     *
+     * @param level one of the TRIM_MEMORY_* levels
+     */
+    public void trimMemory(int level) {
+        int maxSize = memCache.maxSize();
+        int targetSize;
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            targetSize = 0;
+        }
+        else if (level == TRIM_MEMORY_UI_HIDDEN) {
+            // not under pressure, the gallery is likely to come back
+            targetSize = maxSize / 2;
+        }
+        else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            targetSize = maxSize / 4;
+        }
+        else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            targetSize = maxSize / 2;
+        }
+        else {
+            targetSize = maxSize * 3 / 4;
+        }
+
+        int released = 0;
+        boolean keepRaw = level < TRIM_MEMORY_MODERATE;
+        synchronized (memCache) {
+            int size = memCache.size();
+            // the snapshot is ordered from least to most recently used
+            for (Map.Entry<Long, Bitmap> entry : memCache.snapshot().entrySet()) {
+                if (size <= targetSize) {
+                    break;
+                }
+                long key = entry.getKey();
+                Bitmap bitmap = entry.getValue();
+                if (memCache.remove(key) == null) {
+                    continue;
+                }
+                int bytes = bitmap.getRowBytes() * bitmap.getHeight();
+                size -= bytes;
+                released += bytes;
+                if (keepRaw) {
+                    demoteToRawCache(key, bitmap);
+                }
+            }
+        }
+
+        // UI_HIDDEN too, only the hidden detail view shows them
+        if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            synchronized (previewCache) {
+                released += previewCache.size();
+                previewCache.evictAll();
+            }
+        }
+        if (!keepRaw) {
+            rawCache.release();
+        }
+
+        trimMetrics.recordTrim(level, released);
+        Log.d(TAG, trimMetrics.toString());
+    }
+
+    /**
+     * Log the throughput of each stage of the pipeline.
+     */
+    public void logStageMetrics() {
+        Log.d(TAG, diskStage.getMetrics().toString());
+        Log.d(TAG, networkStage.getMetrics().toString() + 
+                ", limit " + String.valueOf(downloadLimiter.getLimit()));
+        Log.d(TAG, writerStage.getMetrics().toString());
+    }
+
+    /**
+     * Stops running downloads and shuts down the thread pools.
+     * 
+     * Pending disk cache writes are still finished.
      */
     public void stopThreadPool() {
         Log.i(TAG, "stopping thread pool");
-        pool.shutdownNow();
+        logStageMetrics();
+        diskStage.shutdownNow();
+        networkStage.shutdownNow();
+        writerStage.execute(new Runnable() {
+            public void run() {
+                contentIndex.flush();
+            }
+        });
+        writerStage.shutdown();
     }
 }
@@ -0,0 +1,109 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android.worker;
+
+/**
+ * Counters of the memory trims of a worker.
+ *
+ * Counts how often a worker was asked to release memory, the
+ * highest level it saw and how much it released (in the unit of
+ * the worker, bytes or items).
+ */
+public class TrimMetrics {
+
+    /**
+     * Name of the worker, used in the summary.
+     */
+    private final String name;
+
+    /**
+     * Unit of the released amount, used in the summary.
+     */
+    private final String unit;
+
+    /**
+     * Number of trims.
+     */
+    private long trims = 0;
+
+    /**
+     * Highest level of all trims.
+     */
+    private int maxLevel = 0;
+
+    /**
+     * Level of the last trim.
+     */
+    private int lastLevel = 0;
+
+    /**
+     * Sum of the released amounts.
+     */
+    private long released = 0;
+
+    /**
+     * Constructs the metrics of a worker.
+     *
+     * @param name of the worker
+     * @param unit of the released amount
+     */
+    public TrimMetrics(String name, String unit) {
+        this.name = name;
+        this.unit = unit;
+    }
+
+    /**
+     * Record a trim.
+     *
+     * @param level of the trim
+     * @param amount released
+     */
+    public synchronized void recordTrim(int level, long amount) {
+        trims++;
+        lastLevel = level;
+        maxLevel = Math.max(maxLevel, level);
+        released += amount;
+    }
+
+    /**
+     * Return the number of trims.
+     *
+     * @return count
+     */
+    public synchronized long getTrims() {
+        return trims;
+    }
+
+    /**
+     * Return the sum of the released amounts.
+     *
+     * @return amount
+     */
+    public synchronized long getReleased() {
+        return released;
+    }
+
+    /**
+     * Return a one line summary for the log.
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: %d trims (last level %d, max %d), released %d %s",
+                name, trims, lastLevel, maxLevel, released, unit);
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android.worker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the limit transitions of the AIMD ConcurrencyLimiter.
+ */
+public class ConcurrencyLimiterTest extends TestCase {
+
+    /**
+     * Limits reported to the listener.
+     */
+    private List<Integer> changes = new ArrayList<Integer>();
+
+    private ConcurrencyLimiter.LimitListener listener = new ConcurrencyLimiter.LimitListener() {
+        public void onLimitChanged(int limit) {
+            changes.add(limit);
+        }
+    };
+
+    public void testInitialLimitWithinBounds() {
+        assertEquals(8, new ConcurrencyLimiter(1, 8, 20, null).getLimit());
+        assertEquals(2, new ConcurrencyLimiter(2, 8, 0, null).getLimit());
+    }
+
+    public void testAdditiveIncrease() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 8, 2, listener);
+        limiter.onSuccess(100); // 2.5
+        limiter.onSuccess(100); // 2.9
+        assertEquals(2, limiter.getLimit());
+        assertTrue(changes.isEmpty());
+        limiter.onSuccess(100); // 3.24
+        assertEquals(3, limiter.getLimit());
+        assertEquals(Arrays.asList(3), changes);
+    }
+
+    public void testIncreaseStopsAtMax() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 3, 3, listener);
+        for (int i = 0; i < 20; i++) {
+            limiter.onSuccess(100);
+        }
+        assertEquals(3, limiter.getLimit());
+        assertTrue(changes.isEmpty());
+    }
+
+    public void testErrorDecreasesMultiplicatively() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 16, 10, listener);
+        limiter.onError();
+        assertEquals(7, limiter.getLimit());
+        assertEquals(Arrays.asList(7), changes);
+    }
+
+    public void testBurstOfErrorsDecreasesOnce() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 16, 10, listener);
+        limiter.onError();
+        limiter.onError();
+        limiter.onError();
+        assertEquals(7, limiter.getLimit());
+    }
+
+    public void testSlowDownloadDecreases() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 16, 10, listener);
+        limiter.onSuccess(100); // baseline, 10.1
+        limiter.onSuccess(1000); // far above the baseline
+        assertEquals(7, limiter.getLimit());
+    }
+
+    public void testDecreaseStopsAtMin() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 8, 2, listener);
+        limiter.onError();
+        assertEquals(2, limiter.getLimit());
+        assertTrue(changes.isEmpty());
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android.worker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the open addressing table of DiskCacheIndex, in particular
+ * the backward shift of remove().
+ */
+public class DiskCacheIndexTest extends TestCase {
+
+    /**
+     * Capacity of a new index, stays unchanged below half of it.
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private DiskCacheIndex index;
+
+    @Override
+    protected void setUp() {
+        index = new DiskCacheIndex("thumb_", ".jpg");
+    }
+
+    public void testAddAndContains() {
+        for (int id = 1; id <= 100; id++) {
+            index.add(id);
+        }
+        index.add(50); // already indexed
+        assertEquals(100, index.size());
+        for (int id = 1; id <= 100; id++) {
+            assertTrue(index.contains(id));
+        }
+        assertFalse(index.contains(101));
+    }
+
+    public void testIgnoresInvalidIds() {
+        index.add(0);
+        index.add(-3);
+        assertEquals(0, index.size());
+    }
+
+    public void testRemoveMissingId() {
+        index.add(1);
+        index.remove(2);
+        assertEquals(1, index.size());
+        assertTrue(index.contains(1));
+    }
+
+    public void testRemoveShiftsCollidingIds() {
+        // ids with the same home slot, followed by one homed right after
+        List<Integer> cluster = idsWithHome(7, 4);
+        List<Integer> next = idsWithHome(8, 1);
+        for (int id : cluster) {
+            index.add(id);
+        }
+        index.add(next.get(0));
+
+        // the gap is filled by the following ids of the probe sequence
+        index.remove(cluster.get(0));
+        assertFalse(index.contains(cluster.get(0)));
+        for (int id : cluster.subList(1, cluster.size())) {
+            assertTrue(index.contains(id));
+        }
+        assertTrue(index.contains(next.get(0)));
+        assertEquals(cluster.size(), index.size());
+
+        // and again in the middle of the remaining cluster
+        index.remove(cluster.get(2));
+        assertTrue(index.contains(cluster.get(1)));
+        assertTrue(index.contains(cluster.get(3)));
+        assertTrue(index.contains(next.get(0)));
+    }
+
+    public void testRemoveAfterResize() {
+        for (int id = 1; id <= 3000; id++) {
+            index.add(id);
+        }
+        for (int id = 3; id <= 3000; id += 3) {
+            index.remove(id);
+        }
+        assertEquals(2000, index.size());
+        for (int id = 1; id <= 3000; id++) {
+            assertEquals(id % 3 != 0, index.contains(id));
+        }
+    }
+
+    /**
+     * Find ids whose home slot in a new index is the given one.
+     *
+     * @param slot home slot
+     * @param count number of ids
+     * @return ids
+     */
+    private static List<Integer> idsWithHome(int slot, int count) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int id = 1; ids.size() < count; id++) {
+            int h = id * 0x9E3779B9;
+            if (((h ^ (h >>> 16)) & (INITIAL_CAPACITY - 1)) == slot) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+}
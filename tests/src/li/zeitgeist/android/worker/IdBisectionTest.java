@@ -0,0 +1,131 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android.worker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that the seek by date ends, driven like findWindowByDate
+ * with item ids standing in for their dates.
+ */
+public class IdBisectionTest extends TestCase {
+
+    private static final int PAGE_SIZE = 10;
+
+    private static final int MAX_PROBES = 24;
+
+    public void testEmptyPagesNarrowTheRange() {
+        IdBisection bisection = new IdBisection(1 << 20, MAX_PROBES);
+        int probes = 0;
+        while (bisection.hasNext()) {
+            bisection.next();
+            bisection.probedOlder();
+            probes++;
+        }
+        assertEquals(20, probes);
+        assertEquals(1 << 20, bisection.getHi());
+    }
+
+    public void testNewerPagesLowerTheUpperBound() {
+        IdBisection bisection = new IdBisection(1000, MAX_PROBES);
+        int probe = bisection.next();
+        bisection.probedNewer(probe + 100); // never above the probe
+        assertEquals(probe, bisection.getHi());
+    }
+
+    public void testStopsAfterMaxProbes() {
+        IdBisection bisection = new IdBisection(1 << 20, 3);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(bisection.hasNext());
+            bisection.next();
+            bisection.probedOlder();
+        }
+        assertFalse(bisection.hasNext());
+    }
+
+    public void testFindsTheItemOfTheDate() {
+        Random random = new Random(42);
+        for (int run = 0; run < 200; run++) {
+            // sparse ids with large gaps, as left by deleted items
+            TreeSet<Integer> ids = new TreeSet<Integer>();
+            int id = 0;
+            while (ids.size() < 500) {
+                id += 1 + (random.nextInt(10) == 0 ? random.nextInt(5000) : random.nextInt(3));
+                ids.add(id);
+            }
+            int date = ids.first() + random.nextInt(ids.last() - ids.first());
+            int expected = ids.headSet(date + 1).last();
+
+            List<Integer> window = seek(ids, date);
+            assertTrue("window of " + date + " lacks " + expected, window.contains(expected));
+        }
+    }
+
+    /**
+     * Seek the page of the date like ItemWorker.findWindowByDate.
+     *
+     * @param ids existing item ids
+     * @param date id of the date
+     * @return page, newest first
+     */
+    private static List<Integer> seek(TreeSet<Integer> ids, int date) {
+        List<Integer> page = listBefore(ids, -1);
+        if (page.get(page.size() - 1) <= date) {
+            return page;
+        }
+        IdBisection bisection = new IdBisection(page.get(page.size() - 1), MAX_PROBES);
+        int probes = 0;
+        while (bisection.hasNext()) {
+            page = listBefore(ids, bisection.next() + 1);
+            probes++;
+            if (page.isEmpty() || page.get(0) <= date) {
+                bisection.probedOlder();
+            }
+            else if (page.get(page.size() - 1) > date) {
+                bisection.probedNewer(page.get(page.size() - 1));
+            }
+            else {
+                return page;
+            }
+        }
+        int maxProbes = 32 - Integer.numberOfLeadingZeros(ids.last());
+        assertTrue(probes + " probes", probes <= maxProbes);
+        return listBefore(ids, bisection.getHi() + 1);
+    }
+
+    /**
+     * Return the page of ids older than before.
+     *
+     * @param ids
+     * @param before exclusive, -1 for the newest
+     * @return page, newest first
+     */
+    private static List<Integer> listBefore(TreeSet<Integer> ids, int before) {
+        List<Integer> older = new ArrayList<Integer>(before == -1 ? ids : ids.headSet(before));
+        List<Integer> page = new ArrayList<Integer>(
+                older.subList(Math.max(0, older.size() - PAGE_SIZE), older.size()));
+        Collections.reverse(page);
+        return page;
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android.worker;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the classification of ItemChangeSet.diff.
+ */
+public class ItemChangeSetTest extends TestCase {
+
+    private static final List<Integer> NONE = Collections.<Integer>emptyList();
+
+    public void testEmptyPositionsAreReset() {
+        ItemChangeSet changes = ItemChangeSet.diff(NONE, Arrays.asList(3, 2, 1), NONE);
+        assertTrue(changes.isReset());
+        assertFalse(changes.isFilterChanged());
+    }
+
+    public void testNewerItemsAreInsertedAtTop() {
+        ItemChangeSet changes = ItemChangeSet.diff(Arrays.asList(5, 4, 3),
+                Arrays.asList(7, 6, 5, 4, 3), NONE);
+        assertFalse(changes.isReset());
+        assertEquals(2, changes.getInsertedAtTop());
+        assertEquals(0, changes.getAppendedAtBottom());
+        assertTrue(changes.getRemovedIds().isEmpty());
+    }
+
+    public void testOlderItemsAreAppendedAtBottom() {
+        ItemChangeSet changes = ItemChangeSet.diff(Arrays.asList(5, 4, 3),
+                Arrays.asList(5, 4, 3, 2, 1), NONE);
+        assertFalse(changes.isReset());
+        assertEquals(0, changes.getInsertedAtTop());
+        assertEquals(2, changes.getAppendedAtBottom());
+    }
+
+    public void testMissingItemsAreRemoved() {
+        ItemChangeSet changes = ItemChangeSet.diff(Arrays.asList(5, 4, 3),
+                Arrays.asList(6, 5, 3), NONE);
+        assertFalse(changes.isReset());
+        assertEquals(1, changes.getInsertedAtTop());
+        assertEquals(Arrays.asList(4), changes.getRemovedIds());
+    }
+
+    public void testItemsBetweenKnownOnesAreReset() {
+        ItemChangeSet changes = ItemChangeSet.diff(Arrays.asList(5, 3),
+                Arrays.asList(5, 4, 3), NONE);
+        assertTrue(changes.isReset());
+    }
+
+    public void testOnlyShownItemsAreUpdated() {
+        ItemChangeSet changes = ItemChangeSet.diff(Arrays.asList(5, 4, 3),
+                Arrays.asList(5, 4), Arrays.asList(4, 3, 9));
+        assertEquals(Arrays.asList(4), changes.getUpdatedIds());
+        assertEquals(Arrays.asList(3), changes.getRemovedIds());
+    }
+
+    public void testUnchangedPositionsAreEmpty() {
+        ItemChangeSet changes = ItemChangeSet.diff(Arrays.asList(5, 4, 3),
+                Arrays.asList(5, 4, 3), NONE);
+        assertTrue(changes.isEmpty());
+        assertFalse(ItemChangeSet.diff(Arrays.asList(5, 4, 3),
+                Arrays.asList(5, 4, 3), Arrays.asList(4)).isEmpty());
+    }
+
+    public void testFilterChangedIsReset() {
+        ItemChangeSet changes = ItemChangeSet.filterChanged();
+        assertTrue(changes.isReset());
+        assertTrue(changes.isFilterChanged());
+        assertFalse(changes.isEmpty());
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Zeitgeist for Android
+ * Copyright (C) 2012  Matthias Hecker <http://apoc.cc/>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package li.zeitgeist.android.worker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the order PriorityExecutor runs its tasks in and which task
+ * it drops when its queue is full.
+ *
+ * The single thread of the executor is blocked while the tasks are
+ * queued, so they are all waiting when it is released.
+ */
+public class PriorityExecutorTest extends TestCase {
+
+    /**
+     * Names of the tasks in the order they ran.
+     */
+    private List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Names of the tasks dropped from the full queue.
+     */
+    private List<String> dropped = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Released to unblock the thread of the executor.
+     */
+    private CountDownLatch gate = new CountDownLatch(1);
+
+    /**
+     * Task that records its name when it runs.
+     */
+    private class NamedTask implements PriorityExecutor.CancellableTask {
+        private final String name;
+        private final boolean cancelled;
+
+        public NamedTask(String name, boolean cancelled) {
+            this.name = name;
+            this.cancelled = cancelled;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public void run() {
+            order.add(name);
+        }
+    }
+
+    public void testVisibleTasksRunLastInFirstOut() throws InterruptedException {
+        PriorityExecutor executor = createBlocked(0);
+        execute(executor, "v1", PriorityExecutor.PRIORITY_VISIBLE);
+        execute(executor, "v2", PriorityExecutor.PRIORITY_VISIBLE);
+        execute(executor, "v3", PriorityExecutor.PRIORITY_VISIBLE);
+        runAll(executor);
+        assertEquals(Arrays.asList("v3", "v2", "v1"), order);
+    }
+
+    public void testPrefetchTasksRunFirstInFirstOut() throws InterruptedException {
+        PriorityExecutor executor = createBlocked(0);
+        execute(executor, "p1", PriorityExecutor.PRIORITY_PREFETCH);
+        execute(executor, "p2", PriorityExecutor.PRIORITY_PREFETCH);
+        execute(executor, "p3", PriorityExecutor.PRIORITY_PREFETCH);
+        runAll(executor);
+        assertEquals(Arrays.asList("p1", "p2", "p3"), order);
+    }
+
+    public void testVisibleTasksRunBeforePrefetching() throws InterruptedException {
+        PriorityExecutor executor = createBlocked(0);
+        execute(executor, "p1", PriorityExecutor.PRIORITY_PREFETCH);
+        execute(executor, "v1", PriorityExecutor.PRIORITY_VISIBLE);
+        execute(executor, "p2", PriorityExecutor.PRIORITY_PREFETCH);
+        execute(executor, "v2", PriorityExecutor.PRIORITY_VISIBLE);
+        runAll(executor);
+        assertEquals(Arrays.asList("v2", "v1", "p1", "p2"), order);
+    }
+
+    public void testFullQueueDropsLastPrefetch() throws InterruptedException {
+        PriorityExecutor executor = createBlocked(2);
+        execute(executor, "p1", PriorityExecutor.PRIORITY_PREFETCH);
+        execute(executor, "p2", PriorityExecutor.PRIORITY_PREFETCH);
+        execute(executor, "v1", PriorityExecutor.PRIORITY_VISIBLE);
+        assertEquals(Arrays.asList("p2"), dropped);
+        runAll(executor);
+        assertEquals(Arrays.asList("v1", "p1"), order);
+    }
+
+    public void testFullQueueDropsNewLowestTask() throws InterruptedException {
+        PriorityExecutor executor = createBlocked(2);
+        execute(executor, "v1", PriorityExecutor.PRIORITY_VISIBLE);
+        execute(executor, "v2", PriorityExecutor.PRIORITY_VISIBLE);
+        execute(executor, "p1", PriorityExecutor.PRIORITY_PREFETCH);
+        assertEquals(Arrays.asList("p1"), dropped);
+        runAll(executor);
+        assertEquals(Arrays.asList("v2", "v1"), order);
+    }
+
+    public void testFullQueuePurgesCancelledTasks() throws InterruptedException {
+        PriorityExecutor executor = createBlocked(2);
+        executor.execute(new NamedTask("c1", true), PriorityExecutor.PRIORITY_VISIBLE);
+        execute(executor, "v1", PriorityExecutor.PRIORITY_VISIBLE);
+        execute(executor, "v2", PriorityExecutor.PRIORITY_VISIBLE);
+        assertTrue(dropped.isEmpty());
+        runAll(executor);
+        assertEquals(Arrays.asList("v2", "v1"), order);
+    }
+
+    /**
+     * Create an executor with one thread, blocked until runAll.
+     *
+     * @param capacity of the queue, 0 for unbounded
+     * @return executor
+     * @throws InterruptedException
+     */
+    private PriorityExecutor createBlocked(int capacity) throws InterruptedException {
+        PriorityExecutor executor = new PriorityExecutor("test", 1, capacity,
+                new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                dropped.add(((NamedTask) task).name);
+            }
+        });
+        final CountDownLatch started = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    gate.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        started.await();
+        return executor;
+    }
+
+    private void execute(PriorityExecutor executor, String name, int priority) {
+        executor.execute(new NamedTask(name, false), priority);
+    }
+
+    /**
+     * Release the thread and wait for all queued tasks.
+     *
+     * @param executor
+     * @throws InterruptedException
+     */
+    private void runAll(PriorityExecutor executor) throws InterruptedException {
+        gate.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+}